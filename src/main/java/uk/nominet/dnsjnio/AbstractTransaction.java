@@ -19,12 +19,33 @@ import java.net.SocketTimeoutException;
 
 import org.xbill.DNS.Message;
 import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.TSIG;
 
 /**
  * Abstract superclass for the Transaction and SinglePortTransaction classes
  */
 public abstract class AbstractTransaction implements ConnectionListener, TimerListener {
 
+    // All the connections for a transaction are pinned to the same loop
+    protected final DnsEventLoop eventLoop;
+
+    protected AbstractTransaction() {
+        this(DnsController.next());
+    }
+
+    protected AbstractTransaction(DnsEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Get the event loop that this transaction's connections run on.
+     *
+     * @return the {@link DnsEventLoop} for this transaction.
+     */
+    public DnsEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
     protected boolean disconnect(Connection connection) {
         if (connection != null) {
             // If disconnect returns false, then the connection has already been closed,
@@ -62,22 +83,65 @@ public abstract class AbstractTransaction implements ConnectionListener, TimerLi
      */
     @Override
     public void timedOut(QueryData qData) {
-        // only return an exception if we actually closed the connection
-        if (disconnect(qData)) {
-            returnException(new SocketTimeoutException("Timed out"), qData);
-        }
+        // The callback runs on this transaction's event loop, so any response
+        // has either already been returned, or will not arrive now. The
+        // connection may also have been closed by the far end without
+        // answering, so return the exception whether or not we closed it -
+        // returnException() makes sure the caller only hears back once.
+        disconnect(qData);
+        returnException(new SocketTimeoutException("Timed out"), qData);
     }
 
-    protected static void returnResponse(ResolverListener listener, ResponseQueue responseQueue, Message message, Object id) {
+    /**
+     * Return a response which has not been decoded yet. It is decoded, and
+     * its TSIG verified, by the {@link DecodeStage} if there is one, or
+     * otherwise by the thread which picks it up.
+     *
+     * @param listener the listener to call back, or {@literal null} to use the
+     * responseQueue.
+     * @param responseQueue the queue to insert the response in to.
+     * @param data the response wire format.
+     * @param query the query this is a response to.
+     * @param tsig the TSIG to verify the response with, or {@literal null}.
+     * @param id the id of the query.
+     */
+    protected static void returnResponse(ResolverListener listener, ResponseQueue responseQueue, byte[] data, Message query, TSIG tsig, Object id) {
+        returnResponse(listener, responseQueue, data, query, tsig, id, -1);
+    }
+
+    /**
+     * Return a response which has not been decoded yet, to a query which went
+     * out with a different header ID to the one the caller gave it.
+     *
+     * @param listener the listener to call back, or {@literal null} to use the
+     * responseQueue.
+     * @param responseQueue the queue to insert the response in to.
+     * @param data the response wire format.
+     * @param query the query this is a response to.
+     * @param tsig the TSIG to verify the response with, or {@literal null}.
+     * @param id the id of the query.
+     * @param headerId the caller's header ID, to put back on the response, or
+     * -1 to leave the response as it is.
+     */
+    protected static void returnResponse(ResolverListener listener, ResponseQueue responseQueue, byte[] data, Message query, TSIG tsig, Object id, int headerId) {
         Response response = new Response();
-        if (listener == null) {
-            response.setId(id);
-            response.setMessage(message);
+        response.setId(id);
+        response.setWire(data, query, tsig);
+        if (headerId >= 0) {
+            response.setHeaderId(headerId);
+        }
+        DecodeStage stage = DecodeStage.getInstance();
+        if (listener instanceof ResponseFuture) {
+            // Decoded on the future's own executor
+            ((ResponseFuture) listener).completeWith(response);
+        } else if (stage != null) {
+            stage.complete(response, listener, responseQueue);
+        } else if (listener == null) {
             responseQueue.insert(response);
         } else {
             // Send the result back to the listener
             // @todo@ Should probably have a pool of these threads.
-            ResponderThread responder = new ResponderThread(listener, id, message);
+            ResponderThread responder = new ResponderThread(listener, response);
             responder.start();
         }
     }
@@ -90,6 +154,9 @@ public abstract class AbstractTransaction implements ConnectionListener, TimerLi
             response.setId(id);
             response.setException(true);
             responseQueue.insert(response);
+        } else if (listener instanceof ResponseFuture) {
+            // Completed on the future's own executor
+            listener.handleException(id, e);
         } else {
             // Send the exception back to the listener
             // @todo@ Should probably have a pool of these threads.
@@ -0,0 +1,131 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of direct ByteBuffers, used by the Connections for channel
+ * I/O. Reading or writing a heap buffer makes the JDK copy it through a
+ * temporary direct buffer, so the connections borrow direct buffers from here
+ * instead, and give them back when they are done with them.
+ * <p>
+ * Buffers are kept in power of two size classes, from {@value #MIN_SIZE} bytes
+ * up to {@value #MAX_SIZE} bytes. Requests for anything larger are allocated
+ * on the heap, and are not pooled. The number of bytes kept idle in each size
+ * class is capped by the {@value #POOL_BYTES_PROPERTY} system property
+ * (default 4MB). Buffers which are never returned are simply garbage
+ * collected.</p>
+ */
+public class BufferPool {
+
+    /**
+     * System property used to set the maximum number of idle bytes kept in
+     * each size class.
+     */
+    public static final String POOL_BYTES_PROPERTY = "dnsjnio.bufferPoolBytes";
+    public static final int MIN_SIZE = 512;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+    private static final long maxPooledBytes = Long.getLong(POOL_BYTES_PROPERTY, 4 * 1024 * 1024);
+    private static final Queue<ByteBuffer>[] pools;
+    private static final AtomicInteger[] counts;
+
+    static {
+        @SuppressWarnings("unchecked")
+        Queue<ByteBuffer>[] p = new Queue[NUM_CLASSES];
+        pools = p;
+        counts = new AtomicInteger[NUM_CLASSES];
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            counts[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Get the size class for a capacity, or -1 if it is too large to pool.
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) {
+            return -1;
+        }
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return (32 - Integer.numberOfLeadingZeros(capacity - 1)) - MIN_SHIFT;
+    }
+
+    /**
+     * Borrow a cleared buffer.
+     *
+     * @param minCapacity the smallest capacity the caller can use.
+     * @return a buffer of at least minCapacity bytes. This will be direct
+     * unless minCapacity is larger than {@value #MAX_SIZE}.
+     */
+    public static ByteBuffer acquire(int minCapacity) {
+        int index = sizeClass(minCapacity);
+        if (index < 0) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(MIN_SIZE << index);
+        }
+        counts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use it again. Buffers
+     * which did not come from {@link #acquire(int)} are ignored.
+     *
+     * @param buffer the buffer to return, which may be {@literal null}.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int index = sizeClass(buffer.capacity());
+        if (index < 0 || buffer.capacity() != (MIN_SIZE << index)) {
+            return;
+        }
+        if ((long) (counts[index].get() + 1) * buffer.capacity() > maxPooledBytes) {
+            return;
+        }
+        counts[index].incrementAndGet();
+        pools[index].offer(buffer);
+    }
+
+    /**
+     * Get the number of idle buffers held for a given capacity.
+     *
+     * @param capacity the buffer capacity.
+     * @return the number of pooled buffers in that size class.
+     */
+    public static int getPooledCount(int capacity) {
+        int index = sizeClass(capacity);
+        return (index < 0) ? 0 : counts[index].get();
+    }
+}
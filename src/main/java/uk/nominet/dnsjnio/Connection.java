@@ -22,13 +22,18 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.text.MessageFormat;
-import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
+import org.xbill.DNS.Header;
 
 /**
  * The superclass for the TCP and UDP connections. This class models a socket,
- * and is called by the client, and the DnsController NIO control loop.
+ * and is called by the client, and the DnsEventLoop NIO control loop it is
+ * pinned to.
  * 
  * @author Alex Dalitz <alex@caerkettontech.com>
  * @author John Yeary <jyeary@bluelotussoftware.com>
@@ -40,44 +45,95 @@ public abstract class Connection {
 
     protected final static int SINGLE_PORT_BUFFER_SIZE = 64 * 1024;
     protected final static int BUFFER_SIZE = 4 * 1024;
-    protected byte[] recvBytes;
     protected ConnectionListener listener;
 
     protected SelectionKey sk;
     protected LinkedList sendQ = new LinkedList();
+    // Wire bytes sent from other threads. These are moved on to sendQ by a
+    // single flush task, so a burst of sends doesn't need a Runnable each.
+    private final Queue<byte[]> outboundQ = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Each change of interest ops is an epoll_ctl (or equivalent) syscall
+    private static final AtomicLong interestOpsChanges = new AtomicLong();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            drainOutbound();
+            writeQueued();
+        }
+    };
 
     protected ByteBuffer sendBuffer = null;
-    protected int recvCount = 0;
     protected boolean writeReady = false;
+    // Whether OP_WRITE is selected, which it only is after a short write
+    private boolean writeInterest = false;
 
     protected InetSocketAddress remoteAddress;
     protected InetSocketAddress localAddress;
     protected int localPort;
     private int state = State.CLOSED;
+    // Why the last connect failed, if it did
+    private volatile IOException connectException;
 
-    byte[] bytes;
+    // Borrowed from the BufferPool on the first read, and returned on close.
+    // Bytes are read in after any which have not yet been consumed.
     protected ByteBuffer inBuf;
+    protected final int bufferSize;
+    protected final DnsEventLoop eventLoop;
 
-    Connection(ConnectionListener listener, int bufferSize) {
+    Connection(ConnectionListener listener, int bufferSize, DnsEventLoop eventLoop) {
         this.listener = listener;
-        recvBytes = new byte[bufferSize];
-        bytes = new byte[bufferSize];
-        inBuf = ByteBuffer.wrap(bytes);
+        this.eventLoop = eventLoop;
+        this.bufferSize = bufferSize;
+    }
+
+    Connection(ConnectionListener listener, int bufferSize) {
+        this(listener, bufferSize, DnsController.next());
     }
 
     Connection(ConnectionListener listener) {
         this(listener, BUFFER_SIZE);
     }
 
+    /**
+     * Get the event loop this connection is pinned to. All I/O for the
+     * connection is run on this loop's select thread.
+     *
+     * @return the {@link DnsEventLoop} for this connection.
+     */
+    public DnsEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Change the ops this connection's key is interested in.
+     *
+     * @param ops the new interest set.
+     */
+    protected void setInterestOps(int ops) {
+        interestOpsChanges.incrementAndGet();
+        sk.interestOps(ops);
+    }
+
+    /**
+     * Get the number of times any connection has changed its interest ops.
+     *
+     * @return the count of interest ops changes.
+     */
+    public static long getInterestOpsChangeCount() {
+        return interestOpsChanges.get();
+    }
+
     public void removeListener(ConnectionListener newListener) {
         if (listener == newListener) {
             listener = null;
         }
     }
 
-    protected void fireDataAvailable(byte[] data) {
+    protected void fireDataAvailable(byte[] data, Header header) {
         if (listener != null) {
-            listener.dataAvailable(data, this);
+            listener.dataAvailable(data, header, this);
         }
     }
 
@@ -106,11 +162,12 @@ public abstract class Connection {
 
     public void connect(InetSocketAddress remoteAddress, InetSocketAddress localAddress) {
         if (getState() == State.CLOSED) {
+            connectException = null;
             setRemoteAddress(remoteAddress);
             setLocalAddress(localAddress);
             setState(State.OPENING);
-            if (!DnsController.isSelectThread()) {
-                DnsController.invoke(new Runnable() {
+            if (!eventLoop.inEventLoop()) {
+                eventLoop.invoke(new Runnable() {
                     @Override
                     public void run() {
                         connect();
@@ -123,8 +180,8 @@ public abstract class Connection {
     }
 
     public boolean disconnect() {
-        if (!DnsController.isSelectThread()) {
-            DnsController.invoke(new Runnable() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.invoke(new Runnable() {
                 @Override
                 public void run() {
                     close();
@@ -142,32 +199,42 @@ public abstract class Connection {
      * @param out The byte array to send.
      */
     public void send(final byte[] out) {
-        if (!DnsController.isSelectThread()) {
-            DnsController.invoke(new Runnable() {
-                @Override
-                public void run() {
-                    send(out);
-                }
-            });
+        if (!eventLoop.inEventLoop()) {
+            outboundQ.offer(out);
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.invoke(flushTask);
+            }
         } else {
+            drainOutbound();
             sendQ.add(out);
             writeQueued();
         }
     }
 
     /**
-     * process a write ready selection
+     * Move anything sent from other threads on to the send queue, in order.
+     */
+    private void drainOutbound() {
+        byte[] out;
+        while ((out = outboundQ.poll()) != null) {
+            sendQ.add(out);
+        }
+    }
+
+    /**
+     * process a write ready selection. OP_WRITE is only selected after a
+     * short write, and is deselected again once everything queued has gone.
      */
     public void doWrite() {
-        // Deselect OP_WRITE, but don't enable OP_READ until the end of the write
         if (sk.isValid()) {
-            sk.interestOps(0);
-//        sk.interestOps(SelectionKey.OP_READ);
             writeReady = true;// write is ready
             if (sendBuffer != null) {
                 write(sendBuffer);// may have a partial write
             }
             writeQueued();// write out rest of queue
+            if (writeReady) {
+                setWriteInterest(false);
+            }
         } else {
             closeComplete();
         }
@@ -188,27 +255,60 @@ public abstract class Connection {
      * send some bytes
      */
     private void write(byte[] out) {
-        byte[] data = decorateData(out);
-        ByteBuffer buf = ByteBuffer.wrap(data);
-        write(buf);
+        write(encode(out));
     }
 
-    // Default to do nothing
-    protected byte[] decorateData(byte[] in) {
-        return in;
+    /**
+     * Copy a message into a pooled buffer, ready to be written to the channel.
+     * The buffer is returned to the pool once it has been written out.
+     *
+     * @param out the message to send.
+     * @return the flipped buffer.
+     */
+    protected ByteBuffer encode(byte[] out) {
+        ByteBuffer buf = BufferPool.acquire(out.length);
+        buf.put(out);
+        buf.flip();
+        return buf;
     }
 
     protected void commonEndWrite(ByteBuffer data) {
+        if (state == State.CLOSED) {
+            // The write failed, and closeComplete() has already released the buffers
+            return;
+        }
         if (data.hasRemaining()) {
-            writeReady = false;
-            sk.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-
+            // Short write - wait until the channel is writable again
+            setWriteInterest(true);
             sendBuffer = data;		// save the partial buffer
             writeReady = false;
         } else {
-            sk.interestOps(SelectionKey.OP_READ);
             sendBuffer = null;
-            writeReady = true;
+            BufferPool.release(data);
+        }
+    }
+
+    /**
+     * Called once the channel is connected. The connection selects for reads
+     * from now on, and writes go straight to the channel until one is short.
+     * Anything sent while the connection was opening is written out now.
+     */
+    protected void readyForIO() {
+        writeInterest = false;
+        writeReady = true;
+        setInterestOps(SelectionKey.OP_READ);
+        drainOutbound();
+        writeQueued();
+    }
+
+    /**
+     * Select for OP_WRITE as well as OP_READ, or not. The interest ops are only
+     * changed if they need to be.
+     */
+    private void setWriteInterest(boolean write) {
+        if (write != writeInterest) {
+            writeInterest = write;
+            setInterestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
         }
     }
 
@@ -245,6 +345,33 @@ public abstract class Connection {
         setRemoteAddress(new InetSocketAddress(host, port));
     }
 
+    /**
+     * Get the reason the connection could not be opened.
+     *
+     * @return the exception which stopped the connect, or {@literal null} if
+     * the connection has not failed to open.
+     */
+    public IOException getConnectException() {
+        return connectException;
+    }
+
+    /**
+     * Give up opening the connection. The listener is told straight away
+     * through {@link ConnectionListener#closed(Connection)}, and can find out
+     * why from {@link #getConnectException()}, rather than waiting for its
+     * query to time out.
+     *
+     * @param e the reason.
+     */
+    protected void connectFailed(IOException e) {
+        connectException = e;
+        if (sk != null) {
+            closeComplete();
+        } else {
+            setState(State.CLOSED);
+        }
+    }
+
     protected void closeComplete() {
         if (LOG.isTraceEnabled()) {
             LOG.trace(MessageFormat.format("Connection.closeComplete() called for port {0}", localPort));
@@ -255,39 +382,35 @@ public abstract class Connection {
         try {
             closeChannel();
             if (sk.isValid()) {
-                sk.interestOps(0);
+                setInterestOps(0);
                 sk.selector().wakeup();
             }
         } catch (Exception ce) {
             LOG.warn("Exception in closeComplete for port " + localPort, ce);
         }
         setState(State.CLOSED);
+        BufferPool.release(inBuf);
         inBuf = null;
-        recvBytes = null;
-        recvCount = 0;
-    }
-
-    protected void clearRecvBytes(int j) {
-        if (recvBytes != null) {
-            if (j == recvCount) {
-                recvCount = 0;
-            } else {
-                byte[] temp = new byte[recvCount - j];
-                System.arraycopy(recvBytes, j, temp, 0, recvCount - j);
-                recvCount -= j; // Drop front of buffer
-                System.arraycopy(temp, 0, recvBytes, 0, recvCount);
-                temp = null;
-            }
-        }
+        BufferPool.release(sendBuffer);
+        sendBuffer = null;
     }
 
-    protected void readFromChannel(ByteChannel sc) {
+    /**
+     * Read whatever is available from the channel on to the end of
+     * {@link #inBuf}. The subclass then flips the buffer, consumes what it
+     * can, and compacts it again ready for the next read. The connection is
+     * closed at end of stream.
+     *
+     * @param sc the channel to read from.
+     * @return the number of bytes read, or -1 if nothing could be read.
+     */
+    protected int readFromChannel(ByteChannel sc) {
         int len = 0;
-        ByteBuffer inputBuffer = inBuf; // save a local reference just in case it gets nulled out.
+        if (inBuf == null && state != State.CLOSED) {
+            inBuf = BufferPool.acquire(bufferSize);
+        }
+        ByteBuffer inputBuffer = inBuf;
 
-        // TODO: probably need some type of synchronization on the input
-        // buffer because it gets nulled out in closeComplete due to
-        // timeout and then can potentially cause a crash here.
         if (sc.isOpen() && state != State.CLOSED && inputBuffer != null) {
             try {
                 len = sc.read(inputBuffer);
@@ -300,51 +423,36 @@ public abstract class Connection {
                 LOG.trace("readFromChannel(" + len + " bytes) from port " + localPort);
             }
 
-            if (len >= 0) {
-                addToBuffer(bytes, len);
-                inBuf.clear();
-            } else if (len < 0) {
+            if (len < 0) {
                 closeComplete();
             }
-        } else if (LOG.isTraceEnabled()) {
-            LOG.trace(MessageFormat.format("readFromChannel: Looks like connection is closed for port {0}, sc.isOpen()={1}, state={2}, inputBuffer={3}", localPort, sc.isOpen(), state, inputBuffer));
+        } else {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace(MessageFormat.format("readFromChannel: Looks like connection is closed for port {0}, sc.isOpen()={1}, state={2}, inputBuffer={3}", localPort, sc.isOpen(), state, inputBuffer));
+            }
+            len = -1;
         }
+        return len;
     }
 
     /**
-     * This method simply buffers the input. The send to user will be triggered
-     * when the end of input is reached.
+     * Pass a response to the listener. The framing has already been done by
+     * the subclass, so only the fixed size header is decoded here - that is
+     * enough to route the response. The rest of the message is decoded by
+     * whoever collects the {@link Response}, off the event loop.
      *
-     * @param buf The byte array to add to the buffer.
-     * @param len the length of the buffer to add.
+     * @param packet a single DNS message.
      */
-    protected void addToBuffer(byte[] buf, int len) {
-        byte[] receivedBytes = recvBytes; // save a local reference just in case it gets nulled out.
-
-        // TODO: probably need some type of synchronization on the received
-        // bytes buffer. It gets nulled out in closeComplete due to timeout
-        // and then can potentially cause a crash here.
-        if (buf != null && state != State.CLOSED && receivedBytes != null) {
-            if (recvCount + len > receivedBytes.length) {
-                // Grow the buffer, we already kept a reference to the old
-                // buffer so we don't need to make a temporary copy of it.
-                recvBytes = null;
-                recvBytes = new byte[recvCount + len];
-                System.arraycopy(receivedBytes, 0, recvBytes, 0, recvCount);
-                receivedBytes = recvBytes; // reset the reference
-            }
-            System.arraycopy(buf, 0, receivedBytes, recvCount, len);
-            recvCount += len;
-        } else if (LOG.isTraceEnabled()) {
-            LOG.trace(MessageFormat.format("addToBuffer: Looks like connection is closed for port {0}, buf={1}, state={2}, receivedBytes={3}", localPort, Arrays.toString(buf), state, Arrays.toString(receivedBytes)));
-        }
-    }
-
     protected void sendToUser(byte[] packet) {
-        if (listener != null) {
-            if (NonblockingResolver.isDataComplete(packet)) {
-                fireDataAvailable(packet);	// to user
+        if (listener != null && packet.length >= Header.LENGTH) {
+            Header header;
+            try {
+                header = new Header(packet);
+            } catch (IOException e) {
+                LOG.trace("sendToUser: dropping unreadable header on port " + localPort, e);
+                return;
             }
+            fireDataAvailable(packet, header);	// to user
         }
     }
 
@@ -15,6 +15,8 @@ limitations under the License.
  */
 package uk.nominet.dnsjnio;
 
+import org.xbill.DNS.Header;
+
 /**
  * Interface specifying callbacks from Connection.
  */
@@ -24,7 +26,32 @@ public interface ConnectionListener extends java.util.EventListener {
 
     public void closed(Connection connection);
 
-    public void dataAvailable(byte[] data, Connection connection);
+    /**
+     * Called when a complete response has been received. By default this
+     * passes the response on to {@link #dataAvailable(byte[], Connection)},
+     * so listeners written against that still work.
+     *
+     * @param data the response wire format.
+     * @param header the response header, already decoded from data.
+     * @param connection the connection it arrived on.
+     */
+    public default void dataAvailable(byte[] data, Header header, Connection connection) {
+        dataAvailable(data, connection);
+    }
+
+    /**
+     * Called when a complete response has been received.
+     *
+     * @param data the response wire format.
+     * @param connection the connection it arrived on.
+     * @deprecated implement {@link #dataAvailable(byte[], Header, Connection)},
+     * which is handed the header rather than having to parse it again.
+     */
+    @Deprecated
+    public default void dataAvailable(byte[] data, Connection connection) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " implements neither dataAvailable method");
+    }
 
     public int getPort();
 }
@@ -0,0 +1,205 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.ResolverListener;
+
+/**
+ * An optional pipeline stage which decodes responses, verifies their TSIG, and
+ * hands them back to the caller, on a pool of worker threads. The event loops
+ * only read each response's header to route it, and then pass it on here, so
+ * that neither the parsing nor the TSIG HMAC is done on a select thread.
+ * <p>
+ * The shared stage is switched on by setting the {@value #THREADS_PROPERTY}
+ * system property to the number of worker threads. Responses waiting for a
+ * worker are held in a bounded queue, sized by {@value #QUEUE_SIZE_PROPERTY}
+ * (default 1024). When the queue is full, the event loop does the work
+ * itself. That stops it reading from its sockets until the workers catch up,
+ * so the backlog is pushed back into the socket buffers rather than growing
+ * without limit.</p>
+ * <p>
+ * ResolverListeners are called back on the worker thread, rather than on a new
+ * ResponderThread for each response.</p>
+ */
+public class DecodeStage {
+
+    /**
+     * System property used to set the number of decode worker threads. The
+     * stage is not used if this is not set, or is less than 1.
+     */
+    public static final String THREADS_PROPERTY = "dnsjnio.decodeThreads";
+    /**
+     * System property used to set the number of responses which may wait for
+     * a decode worker.
+     */
+    public static final String QUEUE_SIZE_PROPERTY = "dnsjnio.decodeQueueSize";
+    private static final Logger LOG = Logger.getLogger(DecodeStage.class);
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+    private static final DecodeStage INSTANCE = create();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private static DecodeStage create() {
+        int threads = Integer.getInteger(THREADS_PROPERTY, 0);
+        if (threads < 1) {
+            return null;
+        }
+        int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+        if (queueSize < 1) {
+            LOG.warn(QUEUE_SIZE_PROPERTY + " must be at least 1, was " + queueSize);
+            queueSize = 1;
+        }
+        return new DecodeStage(threads, queueSize);
+    }
+
+    DecodeStage(int threads, int queueSize) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DnsDecode-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                // Queue full - make the event loop do the work itself
+                callerRuns.incrementAndGet();
+                r.run();
+            }
+        });
+    }
+
+    /**
+     * Get the shared decode stage.
+     *
+     * @return the stage, or {@literal null} if {@value #THREADS_PROPERTY} is
+     * not set.
+     */
+    public static DecodeStage getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Decode a response, and pass it back to the caller, on a worker thread.
+     *
+     * @param response the response, with its wire format set.
+     * @param listener the listener to call back, or {@literal null} to use the
+     * responseQueue.
+     * @param responseQueue the queue to insert the response in to.
+     */
+    void complete(final Response response, final ResolverListener listener, final ResponseQueue responseQueue) {
+        final long queued = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Decode, and verify the TSIG, now
+                    response.isException();
+                    if (listener == null) {
+                        responseQueue.insert(response);
+                    } else {
+                        new ResponderThread(listener, response).run();
+                    }
+                } catch (Throwable t) {
+                    LOG.error("Exception caught completing response\r\n", t);
+                }
+                recordLatency(System.nanoTime() - queued);
+            }
+        });
+    }
+
+    private void recordLatency(long nanos) {
+        completed.incrementAndGet();
+        totalLatency.addAndGet(nanos);
+        long max = maxLatency.get();
+        while (nanos > max && !maxLatency.compareAndSet(max, nanos)) {
+            max = maxLatency.get();
+        }
+    }
+
+    /**
+     * Get the number of responses waiting for a worker.
+     *
+     * @return the current queue depth.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of responses which have been through the stage.
+     *
+     * @return the number of responses completed.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of responses which were completed on an event loop
+     * because the queue was full.
+     *
+     * @return the number of responses pushed back to the event loop.
+     */
+    public long getCallerRunsCount() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Get the mean time from a response being handed to the stage to it being
+     * passed back to the caller.
+     *
+     * @return the mean stage latency in nanoseconds, or 0 if nothing has been
+     * completed.
+     */
+    public long getMeanLatencyNanos() {
+        long count = completed.get();
+        return (count == 0) ? 0 : totalLatency.get() / count;
+    }
+
+    /**
+     * Get the longest time from a response being handed to the stage to it
+     * being passed back to the caller.
+     *
+     * @return the maximum stage latency in nanoseconds.
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatency.get();
+    }
+
+    /**
+     * Stop the worker threads once the queued responses have been completed.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -16,31 +16,33 @@ limitations under the License.
  */
 package uk.nominet.dnsjnio;
 
-import java.io.IOException;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 
 /**
- * This class controls the I/O using the java.nio package. A select thread is
- * created, which runs the select loop forever. A queue of invocations is kept
- * for the thread, and an outgoing queue is also instantiated. One DnsController
- * services all resolvers
+ * This class controls the I/O using the java.nio package. A group of
+ * {@link DnsEventLoop}s is created, each of which runs its own select loop
+ * forever on its own thread. The number of loops is read from the
+ * {@value #EVENT_LOOPS_PROPERTY} system property, and defaults to the number of
+ * available processors. Each Connection (and each
+ * SinglePortTransactionController) is pinned to one loop, which is handed out
+ * round-robin by {@link #next()}. One DnsController services all resolvers
+ *
  * @author Alex Dalitz <alex@caerkettontech.com>
  * @author John Yeary <jyeary@bluelotussoftware.com>
  * @author Allan O'Driscoll
  */
 public class DnsController {
 
+    /**
+     * System property used to set the number of select threads.
+     */
+    public static final String EVENT_LOOPS_PROPERTY = "dnsjnio.eventLoops";
     private static Logger LOG = Logger.getLogger(DnsController.class);
+    private static final AtomicInteger NEXT_LOOP = new AtomicInteger();
+    private static DnsEventLoop[] eventLoops;
     private static final DnsController INSTANCE = new DnsController();
-    private static final List<Runnable> INVOCATIONS = new LinkedList<>();
-    private static Selector selector;
-    private static Thread selectThread;
 
     private DnsController() {
         initialise();
@@ -50,96 +52,87 @@ public class DnsController {
         return INSTANCE;
     }
 
+    /**
+     * Get the selector of the first event loop.
+     *
+     * @return the selector of the first event loop.
+     * @deprecated connections register with the selector of their own
+     * {@link DnsEventLoop}.
+     */
+    @Deprecated
     public static Selector getSelector() {
-        return selector;
+        return eventLoops[0].getSelector();
     }
 
     private static void initialise() {
-        try {
-            selector = Selector.open();
-        } catch (IOException ie) {
-            // log error?
-            LOG.error("Error - can't open selector\r\n", ie);
+        int numLoops = Integer.getInteger(EVENT_LOOPS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        if (numLoops < 1) {
+            LOG.warn(EVENT_LOOPS_PROPERTY + " must be at least 1, was " + numLoops);
+            numLoops = 1;
+        }
+        eventLoops = new DnsEventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            eventLoops[i] = new DnsEventLoop("DnsSelect-" + i);
         }
-        selectThread = new Thread("DnsSelect") {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        LOG.trace("DNSController: Starting selectLoop");
-                        selectLoop();
-                        LOG.trace("DNSController: Finished selectLoop");
-                    } catch (Throwable t) {
-                        LOG.error("Caught exception in DnsSelect thread\r\n", t);
-                    }
-                }
-            }
-        };
-        selectThread.setDaemon(true);
-        selectThread.start();
     }
 
-    private static void selectLoop() {
-        Runnable task;
-        while (true) {
-            do {
-                task = null;
-                synchronized (INVOCATIONS) {
-                    if (INVOCATIONS.size() > 0) {
-                        task = INVOCATIONS.get(0);
-                        INVOCATIONS.remove(0);
-                        task.run();
-                    }
-                }
-            } while (task != null);
-
-            try {
-                // We Could get rid of timer thread by calling selector.select(timeout) here.
-                // We'd need to keep a list of all the expected absolute timeouts and wait for the next one
-                // That could get fairly busy if there's a lot of outstanding requests,
-                // and the select loop is not the right place to waste time.
-                // I just don't know whether a separate polling thread (Timer) is the right answer!
-                selector.select();
-            } catch (Exception e) {
-                LOG.error("Exception caught in select loop\r\n", e);
-            }
+    /**
+     * Pick the event loop for a new Connection or transaction controller. Loops
+     * are handed out round-robin.
+     *
+     * @return the next {@link DnsEventLoop} in the group.
+     */
+    public static DnsEventLoop next() {
+        int index = NEXT_LOOP.getAndIncrement() & Integer.MAX_VALUE;
+        return eventLoops[index % eventLoops.length];
+    }
 
-            // process any selected keys
-            Set selectedKeys = selector.selectedKeys();
-            Iterator it = selectedKeys.iterator();
-            while (it.hasNext()) {
-                SelectionKey key = (SelectionKey) (it.next());
-                Connection conn = (Connection) key.attachment();
-                int kro = key.readyOps();
-                if ((kro & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
-                    conn.doRead();
-                }
-                if ((kro & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
-                    conn.doWrite();
-                }
-                if ((kro & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
-                    conn.doConnect();
-                }
-                it.remove();
-            }
-        }
+    public static int getNumberOfEventLoops() {
+        return eventLoops.length;
     }
 
+    /**
+     * Get all of the event loops in the group.
+     *
+     * @return a copy of the array of event loops.
+     */
+    public static DnsEventLoop[] getEventLoops() {
+        return eventLoops.clone();
+    }
+
+    /**
+     * Run a task on the first event loop.
+     *
+     * @param task the task to run.
+     * @deprecated tasks for a Connection must be run on that Connection's own
+     * {@link DnsEventLoop}.
+     */
+    @Deprecated
     public static void invoke(Runnable task) {
-        synchronized (INVOCATIONS) {
-            INVOCATIONS.add(INVOCATIONS.size(), task);
-        }
-        selector.wakeup();
+        eventLoops[0].invoke(task);
     }
 
+    /**
+     * Is the calling thread one of the select threads?
+     *
+     * @return {@literal true} if called from any of the event loops.
+     */
     public static boolean isSelectThread() {
-        return Thread.currentThread() == selectThread;
+        for (DnsEventLoop loop : eventLoops) {
+            if (loop.inEventLoop()) {
+                return true;
+            }
+        }
+        return false;
     }
-    
+
     public static boolean isSelectThreadRunning() {
-        boolean running = false;
-        if (selectThread != null) {
-            running = selectThread.isAlive();
+        boolean running = eventLoops != null;
+        if (running) {
+            for (DnsEventLoop loop : eventLoops) {
+                running &= loop.isRunning();
+            }
         }
         return running;
     }
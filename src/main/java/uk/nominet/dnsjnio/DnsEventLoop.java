@@ -0,0 +1,221 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A single select thread and its {@link Selector}. The thread runs the select
+ * loop forever. A queue of invocations is kept for the thread, so that work
+ * for the connections registered with this loop is always run on the one
+ * thread. The {@link DnsController} owns a group of these loops, and each
+ * {@link Connection} is pinned to one of them for its whole life.
+ *
+ * @author Alex Dalitz <alex@caerkettontech.com>
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @author Allan O'Driscoll
+ */
+public class DnsEventLoop {
+
+    private static final Logger LOG = Logger.getLogger(DnsEventLoop.class);
+    private static final int MAX_TASKS_PER_BATCH = 1024;
+    // Lock-free multi-producer queue, drained only by the select thread
+    private final Queue<Runnable> invocations = new ConcurrentLinkedQueue<>();
+    // Set once a wakeup has been sent, and cleared when the loop wakes, so a
+    // burst of invocations costs one selector.wakeup() rather than one each.
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicLong wakeups = new AtomicLong();
+    // Timeouts for transactions on this loop, used when Timer is set to
+    // drive timeouts from the event loops rather than the DnsTimer thread
+    private final TimingWheel timeouts = new TimingWheel(Timer.getTickMillis(), Timer.WHEEL_SIZE,
+            new Runnable() {
+        @Override
+        public void run() {
+            // The loop may be blocked in select() until a later time
+            wakeup();
+        }
+    });
+    private Selector selector;
+    private final Thread selectThread;
+
+    DnsEventLoop(String name) {
+        try {
+            selector = Selector.open();
+        } catch (IOException ie) {
+            // log error?
+            LOG.error("Error - can't open selector\r\n", ie);
+        }
+        selectThread = new Thread(name) {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        LOG.trace("DnsEventLoop: Starting selectLoop");
+                        selectLoop();
+                        LOG.trace("DnsEventLoop: Finished selectLoop");
+                    } catch (Throwable t) {
+                        LOG.error("Caught exception in " + getName() + " thread\r\n", t);
+                    }
+                }
+            }
+        };
+        selectThread.setDaemon(true);
+        selectThread.start();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    private void selectLoop() {
+        while (true) {
+            // Clear the flag before looking at the queue - anything queued
+            // after this point will either be seen below, or send a wakeup.
+            wakeupPending.set(false);
+            boolean moreTasks = runTasks();
+
+            try {
+                // If this loop owns any timeouts, only block until the
+                // earliest of them falls due.
+                long wait = 0; // block until woken
+                boolean block = !moreTasks;
+                if (block && !timeouts.isEmpty()) {
+                    wait = timeouts.nextExpiryTime() - System.currentTimeMillis();
+                    block = wait > 0;
+                }
+                if (block) {
+                    selector.select(wait);
+                } else {
+                    // Don't block - there is still work to do
+                    selector.selectNow();
+                }
+            } catch (Exception e) {
+                LOG.error("Exception caught in select loop\r\n", e);
+            }
+
+            // process any selected keys
+            Set selectedKeys = selector.selectedKeys();
+            Iterator it = selectedKeys.iterator();
+            while (it.hasNext()) {
+                SelectionKey key = (SelectionKey) (it.next());
+                Connection conn = (Connection) key.attachment();
+                int kro = key.readyOps();
+                if ((kro & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
+                    conn.doRead();
+                }
+                if ((kro & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+                    conn.doWrite();
+                }
+                if ((kro & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
+                    conn.doConnect();
+                }
+                it.remove();
+            }
+
+            if (!timeouts.isEmpty()) {
+                Timer.fireTimeouts(timeouts.expire(System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Run the tasks waiting in the queue. No lock is held while a task runs. At
+     * most {@link #MAX_TASKS_PER_BATCH} tasks are run, so that a flood of
+     * invocations can't starve the selected keys.
+     *
+     * @return {@literal true} if tasks were left in the queue.
+     */
+    private boolean runTasks() {
+        Runnable task;
+        for (int i = 0; i < MAX_TASKS_PER_BATCH; i++) {
+            task = invocations.poll();
+            if (task == null) {
+                break;
+            }
+            task.run();
+        }
+        // Tasks may have queued more work for this loop
+        return !invocations.isEmpty();
+    }
+
+    /**
+     * Queue a task to be run on this loop's select thread. This may be called
+     * from any thread, and never blocks.
+     *
+     * @param task the task to run.
+     */
+    public void invoke(Runnable task) {
+        invocations.offer(task);
+        wakeup();
+    }
+
+    /**
+     * Wake the select thread, unless a wakeup is already pending or we are
+     * running on the select thread.
+     */
+    void wakeup() {
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            wakeups.incrementAndGet();
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get the number of times the selector has actually been woken up.
+     *
+     * @return the count of selector.wakeup() calls made by this loop.
+     */
+    public long getWakeupCount() {
+        return wakeups.get();
+    }
+
+    /**
+     * Is the calling thread the select thread for this loop?
+     *
+     * @return {@literal true} if called from this loop's select thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == selectThread;
+    }
+
+    /**
+     * Get the timeouts driven by this loop. The callbacks for these are made on
+     * this loop's select thread.
+     *
+     * @return the {@link TimingWheel} for this loop.
+     */
+    public TimingWheel getTimeouts() {
+        return timeouts;
+    }
+
+    public boolean isRunning() {
+        return selectThread.isAlive();
+    }
+
+    public String getName() {
+        return selectThread.getName();
+    }
+}
@@ -9,6 +9,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 /**
  * Copyright 2007 Nominet UK
@@ -35,6 +38,9 @@ public class ExtendedNonblockingResolver implements Resolver {
 
         protected Message query;
 
+        // Completed instead of using the responseQueue, if set
+        protected ResponseFuture future;
+
         public QueryRequest(ResponseQueue responseQueue, Object responseId,
                 Message query) {
             this.responseQueue = responseQueue;
@@ -98,6 +104,11 @@ public class ExtendedNonblockingResolver implements Resolver {
 
         private void startNewRequest(final Message query, final Object id,
                 final ResponseQueue responseQueue) {
+            startNewRequest(query, id, responseQueue, null);
+        }
+
+        private void startNewRequest(final Message query, final Object id,
+                final ResponseQueue responseQueue, final ResponseFuture future) {
             // Send the first request
             // This is done in the client thread by making an asynchronous
             // request
@@ -106,6 +117,7 @@ public class ExtendedNonblockingResolver implements Resolver {
             // currently in use?
             // Send a query on the next resolver
             QueryRequest request = new QueryRequest(responseQueue, id, query);
+            request.future = future;
 //			String name = request.query.getQuestion().getName().toString();
 //			System.out.println("Sending first request for " + name
 //					+ " to new resolver " + request.currentIndex);
@@ -122,6 +134,10 @@ public class ExtendedNonblockingResolver implements Resolver {
 
                 response.setId(request.responseId);
                 response.setException(false);
+                if (request.future != null) {
+                    request.future.completeWith(response);
+                    return;
+                }
                 // Now queue the response for the client.
                 request.responseQueue.insert(response);
             } else {
@@ -266,6 +282,10 @@ public class ExtendedNonblockingResolver implements Resolver {
             // First take the client request out the list
             clientRequests.remove(request.responseId);
 
+            if (request.future != null) {
+                request.future.handleException(request.responseId, new InterruptedIOException());
+                return;
+            }
             Response replyToClient = new Response();
             replyToClient.setException(new InterruptedIOException());
             replyToClient.setException(true);
@@ -432,6 +452,52 @@ public class ExtendedNonblockingResolver implements Resolver {
         }
     }
 
+    /**
+     * Asynchronously sends a message to multiple servers, potentially multiple
+     * times, returning a future for the response. The future is completed on
+     * a shared pool of threads as soon as the resolution thread has the
+     * answer, rather than through a ResponseQueue.
+     *
+     * @param query The query to send
+     * @return A future for the response, which is completed exceptionally if
+     * no server answers.
+     * @see #sendAsync(Message, Executor)
+     */
+    public CompletableFuture<Message> sendAsync(final Message query) {
+        return sendFuture(query, new ResponseFuture());
+    }
+
+    /**
+     * Asynchronously sends a message to multiple servers, potentially multiple
+     * times, returning a future which is completed on the given executor.
+     *
+     * @param query The query to send
+     * @param executor The executor to complete the future on
+     * @return A future for the response, which is completed exceptionally if
+     * no server answers.
+     */
+    public CompletableFuture<Message> sendAsync(final Message query, final Executor executor) {
+        return sendFuture(query, new ResponseFuture(executor));
+    }
+
+    private CompletableFuture<Message> sendFuture(final Message query, final ResponseFuture future) {
+        Object id = new Integer(idCount++);
+        resolutionThread.startNewRequest(query, id, null, future);
+        return future;
+    }
+
+    /**
+     * Asynchronously sends a message to multiple servers, returning a
+     * {@link CompletionStage} for the response.
+     *
+     * @param query The query to send
+     * @return A stage for the response
+     * @see #sendAsync(Message)
+     */
+    public CompletionStage<Message> sendAsyncStage(final Message query) {
+        return sendAsync(query);
+    }
+
     /**
      * Asynchronously sends a message to multiple servers, potentially multiple
      * times, registering a queue to receive a response on success or exception.
@@ -15,6 +15,9 @@ limitations under the License.
  */
 package uk.nominet.dnsjnio;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import org.xbill.DNS.*;
 
 /**
@@ -68,6 +71,38 @@ public interface INonblockingResolver extends Resolver {
      */
     public void sendAsync(final Message query, Object id, int timeout, boolean useTCP, final ResponseQueue responseQueue);
 
+    /**
+     * Asynchronously sends a message to a single nameserver, returning a
+     * future which is completed with the response, or exceptionally on
+     * failure or timeout. Multiple asynchronous lookups can be performed in
+     * parallel, and composed with the future's methods.
+     *
+     * @param query The query to send
+     * @return A future for the response
+     */
+    public CompletableFuture<Message> sendAsync(final Message query);
+
+    /**
+     * Asynchronously sends a message, returning a future which is completed
+     * on the given executor.
+     *
+     * @param query The query to send
+     * @param executor The executor to complete the future on
+     * @return A future for the response
+     * @see #sendAsync(Message)
+     */
+    public CompletableFuture<Message> sendAsync(final Message query, final Executor executor);
+
+    /**
+     * Asynchronously sends a message to a single nameserver, returning a
+     * {@link CompletionStage} for the response.
+     *
+     * @param query The query to send
+     * @return A stage for the response
+     * @see #sendAsync(Message)
+     */
+    public CompletionStage<Message> sendAsyncStage(final Message query);
+
     /**
      * Set single port mode on or off for TCP. This is is TCP-based queries.
      *
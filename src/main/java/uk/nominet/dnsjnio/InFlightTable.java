@@ -0,0 +1,184 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The queries in flight on one socket, in a slot for each of the 65536 header
+ * IDs. Slots are claimed, looked up and released with single atomic
+ * operations, so the caller threads and the event loop never wait on each
+ * other, and IDs are never boxed.
+ * <p>
+ * A bitmap of the slots in use lets {@link #values()} skip straight to the
+ * queries in flight, rather than looking at every slot. The slots are only
+ * allocated when the first query is claimed, so a socket which is never used
+ * costs nothing.</p>
+ */
+final class InFlightTable {
+
+    /**
+     * The number of slots - one for every header ID.
+     */
+    static final int SIZE = 65536;
+    private static final int WORDS = SIZE / 64;
+    private static final Random random = new SecureRandom();
+    private volatile AtomicReferenceArray<QueryData> slots;
+    // A bit for each slot, set while the slot is claimed
+    private volatile AtomicLongArray occupied;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Claim the slot for a query's header ID.
+     *
+     * @param id the header ID.
+     * @param qData the query.
+     * @return {@literal false} if another query already has the slot.
+     */
+    boolean claim(int id, QueryData qData) {
+        if (slots == null) {
+            allocate();
+        }
+        if (!slots.compareAndSet(id, null, qData)) {
+            return false;
+        }
+        count.incrementAndGet();
+        int word = id >>> 6;
+        long bit = 1L << id;
+        long bits;
+        do {
+            bits = occupied.get(word);
+        } while (!occupied.compareAndSet(word, bits, bits | bit));
+        return true;
+    }
+
+    /**
+     * Claim a slot for a query, keeping the header ID it already has if that
+     * slot is free. Otherwise a free header ID is drawn at random, so that
+     * the IDs on the wire stay hard to guess.
+     *
+     * @param preferred the query's own header ID.
+     * @param qData the query.
+     * @return the header ID claimed, or -1 if every slot is in use.
+     */
+    int claimFree(int preferred, QueryData qData) {
+        if (claim(preferred, qData)) {
+            return preferred;
+        }
+        int start = random.nextInt(WORDS);
+        int shift = random.nextInt(64);
+        for (int i = 0; i < WORDS; i++) {
+            int word = (start + i) & (WORDS - 1);
+            // Rotate the free bits so the search starts at a random bit
+            long free = Long.rotateRight(~occupied.get(word), shift);
+            while (free != 0) {
+                int id = (word << 6) + ((Long.numberOfTrailingZeros(free) + shift) & 63);
+                free &= free - 1;
+                if (claim(id, qData)) {
+                    return id;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void allocate() {
+        if (slots == null) {
+            occupied = new AtomicLongArray(WORDS);
+            slots = new AtomicReferenceArray<>(SIZE);
+        }
+    }
+
+    /**
+     * Get the query with a header ID.
+     *
+     * @param id the header ID.
+     * @return the query, or {@literal null} if the slot is free.
+     */
+    QueryData get(int id) {
+        AtomicReferenceArray<QueryData> s = slots;
+        return s == null ? null : s.get(id);
+    }
+
+    /**
+     * Release a query's slot, if it still holds that query.
+     *
+     * @param id the header ID.
+     * @param qData the query.
+     * @return {@literal true} if the slot was released.
+     */
+    boolean release(int id, QueryData qData) {
+        AtomicReferenceArray<QueryData> s = slots;
+        if (s == null || qData == null || !s.compareAndSet(id, qData, null)) {
+            return false;
+        }
+        int word = id >>> 6;
+        long bit = 1L << id;
+        long bits;
+        do {
+            bits = occupied.get(word);
+        } while (!occupied.compareAndSet(word, bits, bits & ~bit));
+        count.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Get the number of queries in flight.
+     *
+     * @return the number of slots claimed.
+     */
+    int size() {
+        return count.get();
+    }
+
+    boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /**
+     * Get the queries in flight, in header ID order. Queries claimed or
+     * released while this runs may or may not be included.
+     *
+     * @return a new list of the queries.
+     */
+    List<QueryData> values() {
+        List<QueryData> values = new ArrayList<>(Math.max(0, count.get()));
+        AtomicReferenceArray<QueryData> s = slots;
+        if (s == null) {
+            return values;
+        }
+        AtomicLongArray o = occupied;
+        for (int word = 0; word < WORDS; word++) {
+            long bits = o.get(word);
+            while (bits != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                QueryData qData = s.get(id);
+                if (qData != null) {
+                    values.add(qData);
+                }
+            }
+        }
+        return values;
+    }
+}
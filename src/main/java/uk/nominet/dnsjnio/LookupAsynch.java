@@ -30,6 +30,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The Lookup object issues queries to caching DNS servers. The input consists
@@ -770,6 +771,25 @@ public final class LookupAsynch {
         }
     }
 
+    /**
+     * Performs the lookup asynchronously, using the specified Cache, Resolver,
+     * and search path. The future is completed by whichever thread finishes
+     * the lookup - this one, if the answer is cached.
+     *
+     * @return A future for the answers, which are null if none are found.
+     * {@link #getResult()} says why.
+     */
+    public CompletableFuture<Record[]> runAsync() {
+        final CompletableFuture<Record[]> future = new CompletableFuture<>();
+        runAsynch(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(answers);
+            }
+        });
+        return future;
+    }
+
     private void submitQuery(LookupContinuation lc) {
         currentLookupContinuation = lc;
         Integer nextId = new Integer(nextId());
@@ -26,6 +26,9 @@ import java.security.SecureRandom;
 import java.text.MessageFormat;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 import org.xbill.DNS.*;
 
@@ -75,9 +78,12 @@ public class NonblockingResolver implements INonblockingResolver {
     //
     private static short uniqueID = 0;
     private static Random random = new SecureRandom();
-    private SinglePortTransactionController transactionController;
+    private StripedTransactionController transactionController;
+    private int singlePortStripes = 1;
     private boolean useSingleTCPPort = false;
     private boolean useSingleUDPPort = false;
+    private boolean useUDPSocketPool = false;
+    private boolean useTCPConnectionPool = false;
 
     /**
      * Use a random port by default.
@@ -112,8 +118,6 @@ public class NonblockingResolver implements INonblockingResolver {
             addr = InetAddress.getByName(hostname);
         }
         remoteAddress = new InetSocketAddress(addr, DEFAULT_PORT);
-        transactionController = new SinglePortTransactionController(
-                remoteAddress, localAddress);
     }
 
     /**
@@ -149,7 +153,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setRemoteAddress(InetSocketAddress addr) {
         remoteAddress = addr;
-        transactionController.setRemoteAddress(remoteAddress);
+        releaseTransactionController();
     }
 
     /**
@@ -160,7 +164,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setRemoteAddress(InetAddress addr) {
         remoteAddress = new InetSocketAddress(addr, remoteAddress.getPort());
-        transactionController.setRemoteAddress(remoteAddress);
+        releaseTransactionController();
     }
 
     /**
@@ -170,7 +174,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setRemotePort(int port) {
         remoteAddress = new InetSocketAddress(remoteAddress.getAddress(), port);
-        transactionController.setRemoteAddress(remoteAddress);
+        releaseTransactionController();
     }
 
     /**
@@ -181,7 +185,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setLocalAddress(InetSocketAddress addr) {
         localAddress = addr;
-        transactionController.setLocalAddress(localAddress);
+        releaseTransactionController();
     }
 
     /**
@@ -192,7 +196,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setLocalAddress(InetAddress addr) {
         localAddress = new InetSocketAddress(addr, 0);
-        transactionController.setLocalAddress(localAddress);
+        releaseTransactionController();
     }
 
     /**
@@ -287,6 +291,129 @@ public class NonblockingResolver implements INonblockingResolver {
         this.useSingleUDPPort = useSingleUDPPort;
     }
 
+    /**
+     * Get the number of ports which single port mode spreads queries over.
+     *
+     * @return the number of stripes.
+     * @see #setSinglePortStripes(int)
+     */
+    public int getSinglePortStripes() {
+        return singlePortStripes;
+    }
+
+    /**
+     * <p>
+     * Spread single port queries over several ports rather than one. Each
+     * stripe has its own UDP and TCP connection to the server, and so its own
+     * 65536 header IDs, and each query goes to the stripe with the fewest
+     * queries in flight (see {@link StripedTransactionController}). The
+     * default is 1.</p>
+     * <p>
+     * <strong>Note:</strong> this has no effect unless
+     * {@link #setSingleTcpPort(boolean)} or
+     * {@link #setUseSingleUDPPort(boolean)} is set. Queries already in flight
+     * finish on the ports they were sent from.</p>
+     *
+     * @param stripes the number of stripes, at least 1.
+     */
+    public void setSinglePortStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Need at least one stripe, not " + stripes);
+        }
+        singlePortStripes = stripes;
+        releaseTransactionController();
+    }
+
+    /**
+     * Get the shared single port controller for the current server, local
+     * address and number of stripes, taking a share of it the first time.
+     */
+    private synchronized StripedTransactionController getTransactionController() {
+        if (transactionController == null) {
+            transactionController = StripedTransactionController.acquire(
+                    remoteAddress, localAddress, singlePortStripes);
+        }
+        return transactionController;
+    }
+
+    /**
+     * Give up this resolver's share of the single port controller. Resolvers
+     * using the same server and local address share their single port
+     * connections, which are closed once every resolver sharing them has
+     * been closed, and their queries have finished. The resolver takes a new
+     * share if it is used again.
+     */
+    public void close() {
+        releaseTransactionController();
+    }
+
+    /**
+     * Give back the shared single port controller, as the server, local
+     * address or number of stripes has changed. The next single port query
+     * takes a share of the right one.
+     */
+    private synchronized void releaseTransactionController() {
+        if (transactionController != null) {
+            transactionController.release();
+            transactionController = null;
+        }
+    }
+
+    /**
+     * Determine if UDP queries should use the shared {@link UDPSocketPool}.
+     *
+     * @return {@literal true} if pooled sockets are used.
+     */
+    public boolean isUseUDPSocketPool() {
+        return useUDPSocketPool;
+    }
+
+    /**
+     * <p>
+     * Send UDP queries down a pool of sockets to the server, rather than
+     * opening a new socket for each query. Each pooled socket is bound to a
+     * random port, carries several queries with different header IDs at once,
+     * and is replaced after a number of queries or a length of time (see
+     * {@link UDPSocketPool}). The default value is {@literal false}.</p>
+     * <p>
+     * <strong>Note:</strong> this has no effect if
+     * {@link #setUseSingleUDPPort(boolean)} is set.</p>
+     *
+     * @param useUDPSocketPool {@literal true} to enable and {@literal false} to
+     * disable.
+     */
+    public void setUseUDPSocketPool(boolean useUDPSocketPool) {
+        this.useUDPSocketPool = useUDPSocketPool;
+    }
+
+    /**
+     * Determine if TCP queries should use the shared {@link TCPConnectionPool}.
+     *
+     * @return {@literal true} if pooled connections are used.
+     */
+    public boolean isUseTCPConnectionPool() {
+        return useTCPConnectionPool;
+    }
+
+    /**
+     * <p>
+     * Send TCP queries, including queries run again over TCP after a truncated
+     * UDP response, down persistent connections to the server, rather than
+     * opening a new connection for each query. Connections are kept open for
+     * {@link TCPConnection#setIdleTimeout(long)} after their last query, and
+     * are replaced after a number of queries or a length of time (see
+     * {@link TCPConnectionPool}). The default value is {@literal false}.</p>
+     * <p>
+     * <strong>Note:</strong> this has no effect if
+     * {@link #setSingleTcpPort(boolean)} is set.</p>
+     *
+     * @param useTCPConnectionPool {@literal true} to enable and {@literal false}
+     * to disable.
+     */
+    public void setUseTCPConnectionPool(boolean useTCPConnectionPool) {
+        this.useTCPConnectionPool = useTCPConnectionPool;
+    }
+
     /**
      * Sets the local port to bind to when sending messages. A random port will
      * be used if useSinglePort is false. THIS ONLY WORKS FOR TCP-BASED QUERIES
@@ -296,7 +423,7 @@ public class NonblockingResolver implements INonblockingResolver {
      */
     public void setLocalTcpPort(int port) {
         localAddress = new InetSocketAddress(localAddress.getHostName(), port);
-        transactionController.setLocalAddress(localAddress);
+        releaseTransactionController();
     }
 
     @Override
@@ -404,6 +531,58 @@ public class NonblockingResolver implements INonblockingResolver {
         return response.getMessage();
     }
 
+    /**
+     * Asynchronously sends a message to a single nameserver. The future is
+     * completed without a ResponseQueue or a thread per response, so many
+     * queries can be composed cheaply. The response is decoded, and the
+     * future completed, on a shared pool of threads rather than on the event
+     * loop, so stages which are not async never hold up the I/O.
+     *
+     * @param query The query to send
+     * @return A future for the response, which is completed exceptionally if
+     * the query fails or times out.
+     * @see #sendAsync(Message, Executor)
+     */
+    @Override
+    public CompletableFuture<Message> sendAsync(final Message query) {
+        return sendFuture(query, new ResponseFuture());
+    }
+
+    /**
+     * Asynchronously sends a message to a single nameserver. The response is
+     * decoded, and the future completed, on the given executor.
+     *
+     * @param query The query to send
+     * @param executor The executor to complete the future on
+     * @return A future for the response, which is completed exceptionally if
+     * the query fails or times out.
+     */
+    @Override
+    public CompletableFuture<Message> sendAsync(final Message query, final Executor executor) {
+        return sendFuture(query, new ResponseFuture(executor));
+    }
+
+    private CompletableFuture<Message> sendFuture(final Message query, final ResponseFuture future) {
+        final Object id;
+        synchronized (this) {
+            id = new Integer(uniqueID++);
+        }
+        sendAsync(query, id, timeoutValue, useTCP, null, false, future);
+        return future;
+    }
+
+    /**
+     * Asynchronously sends a message to a single nameserver.
+     *
+     * @param query The query to send
+     * @return A stage for the response.
+     * @see #sendAsync(Message)
+     */
+    @Override
+    public CompletionStage<Message> sendAsyncStage(final Message query) {
+        return sendAsync(query);
+    }
+
     /**
      * Old-style interface
      *
@@ -530,11 +709,9 @@ public class NonblockingResolver implements INonblockingResolver {
         // behaviour of inserting
         // the response in to the client-supplied ResponseQueue.
         // Use SinglePortTransactionController if possible, otherwise get new
-        // Transaction.
-        int qid = query.getHeader().getID();
-        if (useSingleTCPPort
-                && tcp
-                && transactionController.headerIdNotInUse(qid)) {
+        // Transaction. The controller gives the query a free header ID if its
+        // own is in use.
+        if (useSingleTCPPort && tcp) {
             QueryData qData = new QueryData();
             qData.setTcp(tcp);
             qData.setIgnoreTruncation(ignoreTruncation);
@@ -544,14 +721,12 @@ public class NonblockingResolver implements INonblockingResolver {
 //                        qData.setUdpSize(udpSize);
 //                    }
             if (useResponseQueue) {
-                transactionController.sendQuery(qData, id, responseQueue, endTime);
+                getTransactionController().sendQuery(qData, id, responseQueue, endTime);
             } else {
                 // Start up the Transaction with a ResolverListener
-                transactionController.sendQuery(qData, id, listener, endTime);
+                getTransactionController().sendQuery(qData, id, listener, endTime);
             }
-        } else if (useSingleUDPPort
-                && !tcp
-                && transactionController.headerIdNotInUse(qid)) {
+        } else if (useSingleUDPPort && !tcp) {
             QueryData qData = new QueryData();
             qData.setTcp(false);
             qData.setIgnoreTruncation(ignoreTruncation);
@@ -560,20 +735,28 @@ public class NonblockingResolver implements INonblockingResolver {
             qData.setUdpSize(udpSize);
 
             if (useResponseQueue) {
-                transactionController.sendQuery(qData, id, responseQueue, endTime);
+                getTransactionController().sendQuery(qData, id, responseQueue, endTime);
             } else {
                 // Start up the Transaction with a ResolverListener
-                transactionController.sendQuery(qData, id, listener, endTime);
+                getTransactionController().sendQuery(qData, id, listener, endTime);
             }
+        } else if (!tcp && useUDPSocketPool
+                && sendPooled(query, id, responseQueue, listener, udpSize, endTime)) {
+            // Sent down a pooled socket
+        } else if (tcp && useTCPConnectionPool
+                && sendPooledTCP(query, id, responseQueue, listener, endTime)) {
+            // Sent down a pooled connection
         } else {
-            // Pick a random port here - don't leave it to the OS!
-            InetSocketAddress localAddr = getNewInetSocketAddressWithRandomPort(localAddress.getAddress());
+            // Port 0 - the connection picks a random port when it is opened.
+            // UDP ports come from the PortAllocator, TCP ones at random.
+            InetSocketAddress localAddr = new InetSocketAddress(localAddress.getAddress(), 0);
 
             Transaction transaction = new Transaction(remoteAddress, localAddr,
                     tsig, tcp, ignoreTruncation);
             if (!tcp) {
                 transaction.setUdpSize(udpSize);
             }
+            transaction.setUseTCPConnectionPool(useTCPConnectionPool);
             if (useResponseQueue) {
                 transaction.sendQuery(query, id, responseQueue, endTime);
             } else {
@@ -583,6 +766,52 @@ public class NonblockingResolver implements INonblockingResolver {
         }
     }
 
+    /**
+     * Send a UDP query down a socket from the {@link UDPSocketPool}.
+     *
+     * @return {@literal false} if the pool couldn't take the query.
+     */
+    private boolean sendPooled(Message query, Object id, ResponseQueue responseQueue,
+            ResolverListener listener, int udpSize, long endTime) {
+        QueryData qData = new QueryData();
+        qData.setTcp(false);
+        qData.setIgnoreTruncation(ignoreTruncation);
+        qData.setTsig(tsig);
+        qData.setQuery(query);
+        qData.setUdpSize(udpSize);
+        qData.setId(id);
+        qData.setEndTime(endTime);
+        qData.setUseTCPConnectionPool(useTCPConnectionPool);
+        if (listener == null) {
+            qData.setResponseQueue(responseQueue);
+        } else {
+            qData.setListener(listener);
+        }
+        return UDPSocketPool.forUpstream(remoteAddress, localAddress.getAddress()).sendQuery(qData);
+    }
+
+    /**
+     * Send a TCP query down a connection from the {@link TCPConnectionPool}.
+     *
+     * @return {@literal false} if the pool couldn't take the query.
+     */
+    private boolean sendPooledTCP(Message query, Object id, ResponseQueue responseQueue,
+            ResolverListener listener, long endTime) {
+        QueryData qData = new QueryData();
+        qData.setTcp(true);
+        qData.setIgnoreTruncation(ignoreTruncation);
+        qData.setTsig(tsig);
+        qData.setQuery(query);
+        qData.setId(id);
+        qData.setEndTime(endTime);
+        if (listener == null) {
+            qData.setResponseQueue(responseQueue);
+        } else {
+            qData.setListener(listener);
+        }
+        return TCPConnectionPool.forUpstream(remoteAddress, localAddress.getAddress()).sendQuery(qData);
+    }
+
     public static InetSocketAddress getNewInetSocketAddressWithRandomPort(InetAddress addr) {
         int portNum = 1024 + random.nextInt(65535 - 1024);
         InetSocketAddress localAddr = new InetSocketAddress(addr, portNum);
@@ -638,31 +867,4 @@ public class NonblockingResolver implements INonblockingResolver {
             LOG.info("TSIG verify: " + Rcode.string(error));
         }
     }
-
-    /**
-     * Called by the Connection to check if the data received so far constitutes
-     * a complete packet.
-     *
-     * @param in
-     * @return true if the packet is complete
-     */
-    public static boolean isDataComplete(byte[] in) {
-        // Match up the returned qData with the QueryDataList
-        // Make sure that the header ID is correct for the header in qData
-        // If it matches qData, that's great.
-        // If it doesn't, then we need to find the queryData which *does* match
-        // it.
-        // We then close that connection.
-        try {
-            if (in.length < Header.LENGTH) {
-                return false;
-            }
-            Message message = parseMessage(in);
-            int messLen = message.numBytes();
-            boolean ready = (messLen == in.length);
-            return (ready);
-        } catch (IOException e) {
-            return false;
-        }
-    }
 }
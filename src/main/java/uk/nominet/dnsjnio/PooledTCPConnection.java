@@ -0,0 +1,333 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Header;
+
+/**
+ * One persistent connection in a {@link TCPConnectionPool}. Queries are
+ * pipelined - each is written as soon as it is sent, without waiting for the
+ * responses to those before it - up to a limit on the number in flight. They
+ * are matched to their responses by header ID, in whatever order the server
+ * answers, so only one query with any given ID may be in flight on the
+ * connection at a time.
+ * <p>
+ * Once the last query in flight has finished, the socket is kept open for the
+ * idle timeout (see {@link TCPConnection#setIdleTimeout(long)}), and opened
+ * again for the next query if it has been closed in the meantime. If the
+ * server closes the socket while queries are in flight, they are sent again on
+ * a new socket - unless the socket never answered anything, in which case
+ * they fail rather than being tried over and over.</p>
+ * <p>
+ * Once the connection has been used for its share of queries, or has reached
+ * its expiry time, it is retired: it takes no new queries, and is closed when
+ * the last query in flight finishes.</p>
+ */
+class PooledTCPConnection extends AbstractTransaction {
+
+    private static final Logger LOG = Logger.getLogger(PooledTCPConnection.class);
+    private final InetSocketAddress remoteAddress;
+    private final InetAddress localAddress;
+    // Queries in flight, by header ID. Claimed under this, so that the limit
+    // holds and nothing is claimed once the connection is retired.
+    private final InFlightTable inFlight = new InFlightTable();
+    private final int maxInFlight;
+    private final long expiryTime;
+    // The open socket, or null between sockets. Guarded by this.
+    private TCPConnection connection;
+    // Whether the socket has answered any query since it was opened
+    private volatile boolean answering = false;
+    private int usesLeft;
+    private boolean retired = false;
+    private boolean closed = false;
+
+    PooledTCPConnection(InetSocketAddress remoteAddress, InetAddress localAddress, int maxInFlight, int maxUses, long expiryTime) {
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.maxInFlight = maxInFlight;
+        this.usesLeft = maxUses;
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Take a query, if the connection is still in service, has room for
+     * another query in flight, and has no other query in flight with the same
+     * header ID.
+     *
+     * @param qData the query.
+     * @return {@literal true} if the query has been taken.
+     */
+    synchronized boolean reserve(QueryData qData) {
+        if (retired || (inFlight.size() >= maxInFlight)
+                || !inFlight.claim(qData.getQuery().getHeader().getID(), qData)) {
+            return false;
+        }
+        if (--usesLeft <= 0) {
+            retired = true;
+        }
+        return true;
+    }
+
+    /**
+     * Send a query which has been reserved on this connection, opening the
+     * socket if need be.
+     *
+     * @param qData the query.
+     */
+    void send(QueryData qData) {
+        Timer.addTimeout(qData.getEndTime(), this, qData);
+        write(qData);
+    }
+
+    private void write(QueryData qData) {
+        TCPConnection c;
+        boolean open = false;
+        synchronized (this) {
+            if (connection == null) {
+                connection = new TCPConnection(this, Connection.BUFFER_SIZE, eventLoop);
+                answering = false;
+                open = true;
+            }
+            c = connection;
+            qData.setConnection(c);
+            qData.setSent(true);
+        }
+        if (open) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Opening pooled TCP connection to " + remoteAddress);
+            }
+            // Anything sent before the socket is open is written once it is
+            c.connect(remoteAddress, new InetSocketAddress(localAddress, 0));
+        }
+        sendQuery(c, qData.getQuery());
+    }
+
+    /**
+     * Retire the connection if it has reached its expiry time.
+     *
+     * @param now the current time.
+     * @return {@literal true} if the connection is retired.
+     */
+    boolean retireIfExpired(long now) {
+        synchronized (this) {
+            if (now >= expiryTime) {
+                retired = true;
+            }
+            if (!retired) {
+                return false;
+            }
+        }
+        closeIfIdle();
+        return true;
+    }
+
+    /**
+     * Get the number of queries in flight.
+     *
+     * @return the number of queries waiting for a response.
+     */
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Is the socket open, or being opened?
+     *
+     * @return {@literal true} if there is a socket.
+     */
+    synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Once nothing is in flight, close the socket if the connection is retired
+     * or isn't kept open when idle, and otherwise start the idle timer.
+     */
+    private void closeIfIdle() {
+        TCPConnection idle = null;
+        long idleTimeout = TCPConnection.getIdleTimeout();
+        synchronized (this) {
+            if (!inFlight.isEmpty()) {
+                return;
+            }
+            if (retired) {
+                closed = true;
+            }
+            if (connection == null) {
+                return;
+            }
+            if (retired || idleTimeout <= 0) {
+                idle = connection;
+                connection = null;
+            }
+        }
+        if (idle != null) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Closing pooled TCP connection on port " + idle.localPort);
+            }
+            disconnect(idle);
+        } else {
+            Timer.addTimeout(System.currentTimeMillis() + idleTimeout, this);
+        }
+    }
+
+    /**
+     * Has the connection been retired and closed?
+     *
+     * @return {@literal true} once the connection will not be used again.
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Called with a query's timeout, or with {@literal null} when the idle
+     * timer expires. The socket is only closed if nothing has been sent on it
+     * since.
+     *
+     * @param qData the query which has timed out, or {@literal null}.
+     */
+    @Override
+    public void timedOut(QueryData qData) {
+        if (qData != null) {
+            super.timedOut(qData);
+            return;
+        }
+        TCPConnection idle = null;
+        synchronized (this) {
+            if (inFlight.isEmpty() && connection != null) {
+                idle = connection;
+                connection = null;
+            }
+        }
+        if (idle != null) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Closing idle TCP connection on port " + idle.localPort);
+            }
+            disconnect(idle);
+        }
+    }
+
+    /**
+     * Nothing to do - queries are written as soon as they are sent, and the
+     * connection writes them out when it opens.
+     */
+    @Override
+    public void readyToSend(Connection connection) {
+    }
+
+    /**
+     * A response is available. Match it to its query by header ID - the
+     * server may answer in any order.
+     *
+     * @param data
+     * @param header
+     * @param connection
+     */
+    @Override
+    public void dataAvailable(byte[] data, Header header, Connection connection) {
+        QueryData qData = inFlight.get(header.getID());
+        if ((qData == null) || (qData.getConnection() != connection)
+                || !inFlight.release(header.getID(), qData)) {
+            return;
+        }
+        answering = true;
+        if (!qData.isAnswered()) {
+            qData.setAnswered(true);
+            Timer.cancelTimeout(this, qData);
+            returnResponse(qData.getListener(), qData.getResponseQueue(), data, qData.getQuery(), qData.getTsig(), qData.getId());
+        }
+        closeIfIdle();
+    }
+
+    /**
+     * The socket has been closed by the server, or could not be opened. Queries
+     * still in flight are sent again on a new socket if this one had been
+     * answering, and fail otherwise.
+     *
+     * @param closedConnection the socket.
+     */
+    @Override
+    public void closed(Connection closedConnection) {
+        List<QueryData> resend = null;
+        List<QueryData> failed = null;
+        IOException e = closedConnection.getConnectException();
+        synchronized (this) {
+            if (connection != closedConnection) {
+                return;
+            }
+            connection = null;
+            if (!inFlight.isEmpty()) {
+                if ((e == null) && answering) {
+                    resend = inFlight.values();
+                } else {
+                    failed = new ArrayList<>();
+                    for (QueryData qData : inFlight.values()) {
+                        if (inFlight.release(qData.getQuery().getHeader().getID(), qData)) {
+                            failed.add(qData);
+                        }
+                    }
+                }
+            }
+        }
+        if (resend != null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TCP connection to " + remoteAddress + " closed - sending " + resend.size() + " queries again");
+            }
+            for (QueryData qData : resend) {
+                write(qData);
+            }
+        }
+        if (failed != null) {
+            if (e == null) {
+                e = new IOException("Connection closed by " + remoteAddress);
+            }
+            for (QueryData qData : failed) {
+                returnException(e, qData);
+            }
+        }
+        closeIfIdle();
+    }
+
+    /**
+     * Stop waiting for a query's response.
+     *
+     * @param qData
+     * @return {@literal true} if the query was in flight.
+     */
+    @Override
+    protected boolean disconnect(QueryData qData) {
+        boolean removed = inFlight.release(qData.getQuery().getHeader().getID(), qData);
+        closeIfIdle();
+        return removed;
+    }
+
+    @Override
+    protected void returnException(Exception e, QueryData qData) {
+        if (!qData.isAnswered()) {
+            qData.setAnswered(true);
+            Timer.cancelTimeout(this, qData);
+            returnException(qData.getListener(), qData.getResponseQueue(), e, qData.getId());
+        }
+    }
+}
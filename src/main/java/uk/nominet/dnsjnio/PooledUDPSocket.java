@@ -0,0 +1,227 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import org.apache.log4j.Logger;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+
+/**
+ * One socket in a {@link UDPSocketPool}. Queries are matched to their responses
+ * by header ID, so only one query with any given ID may be in flight on the
+ * socket at a time. Once the socket has been used for its share of queries, or
+ * has reached its expiry time, it is retired: it takes no new queries, and is
+ * closed when the last query in flight finishes. The expiry time is on the
+ * timer, so a socket is retired on time even if no more queries come along.
+ */
+class PooledUDPSocket extends AbstractTransaction {
+
+    private static final Logger LOG = Logger.getLogger(PooledUDPSocket.class);
+    private final UDPSocketPool pool;
+    private final InetSocketAddress remoteAddress;
+    private final UDPConnection connection;
+    // Queries in flight, by header ID. Claimed under this, so that nothing is
+    // claimed once the socket is retired.
+    private final InFlightTable inFlight = new InFlightTable();
+    private final long expiryTime;
+    private int usesLeft;
+    private boolean retired = false;
+    private boolean closed = false;
+
+    PooledUDPSocket(UDPSocketPool pool, InetSocketAddress remoteAddress, InetSocketAddress localAddress, int maxUses, long expiryTime) {
+        this.pool = pool;
+        this.remoteAddress = remoteAddress;
+        this.usesLeft = maxUses;
+        this.expiryTime = expiryTime;
+        connection = new UDPConnection(this, Connection.SINGLE_PORT_BUFFER_SIZE, eventLoop);
+        connection.connect(remoteAddress, localAddress);
+        Timer.addTimeout(expiryTime, this);
+    }
+
+    /**
+     * Take a query, if the socket is still in service and has no other query
+     * in flight with the same header ID.
+     *
+     * @param qData the query.
+     * @return {@literal true} if the query has been taken.
+     */
+    synchronized boolean reserve(QueryData qData) {
+        if (retired || !inFlight.claim(qData.getQuery().getHeader().getID(), qData)) {
+            return false;
+        }
+        qData.setConnection(connection);
+        if (--usesLeft <= 0) {
+            retired = true;
+        }
+        return true;
+    }
+
+    /**
+     * Send a query which has been reserved on this socket.
+     *
+     * @param qData the query.
+     */
+    void send(QueryData qData) {
+        Timer.addTimeout(qData.getEndTime(), this, qData);
+        qData.setSent(true);
+        sendQuery(connection, qData.getQuery());
+    }
+
+    /**
+     * Retire the socket if it has reached its expiry time.
+     *
+     * @param now the current time.
+     * @return {@literal true} if the socket is retired.
+     */
+    boolean retireIfExpired(long now) {
+        synchronized (this) {
+            if (now >= expiryTime) {
+                retired = true;
+            }
+            if (!retired) {
+                return false;
+            }
+        }
+        closeIfIdle();
+        return true;
+    }
+
+    private void closeIfIdle() {
+        synchronized (this) {
+            if (!retired || closed || !inFlight.isEmpty()) {
+                return;
+            }
+            closed = true;
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Closing pooled UDP socket on port " + connection.localPort);
+        }
+        Timer.cancelTimeout(this);
+        disconnect(connection);
+    }
+
+    /**
+     * Called with a query's timeout, or with {@literal null} when the socket
+     * reaches its expiry time. The socket is then retired, taken out of the
+     * pool, and closed once it is idle.
+     *
+     * @param qData the query which has timed out, or {@literal null}.
+     */
+    @Override
+    public void timedOut(QueryData qData) {
+        if (qData != null) {
+            super.timedOut(qData);
+            return;
+        }
+        if (retireIfExpired(System.currentTimeMillis())) {
+            pool.remove(this);
+        }
+    }
+
+    /**
+     * Nothing to do - queries are written as soon as they are sent, and the
+     * connection writes them out when it opens.
+     */
+    @Override
+    public void readyToSend(Connection connection) {
+    }
+
+    /**
+     * A response is available. Match it to its query by header ID. If it is
+     * truncated, and the query doesn't ignore truncation, the query is run
+     * again over TCP by a new Transaction.
+     *
+     * @param data
+     * @param header
+     * @param connection
+     */
+    @Override
+    public void dataAvailable(byte[] data, Header header, Connection connection) {
+        QueryData qData = inFlight.get(header.getID());
+        if (!inFlight.release(header.getID(), qData)) {
+            return;
+        }
+        if (!qData.isIgnoreTruncation() && header.getFlag(Flags.TC)) {
+            Timer.cancelTimeout(this, qData);
+            qData.setTcp(true);
+            if (qData.isUseTCPConnectionPool()
+                    && TCPConnectionPool.forUpstream(remoteAddress, connection.getLocalAddress().getAddress()).sendQuery(qData)) {
+                closeIfIdle();
+                return;
+            }
+            qData.setAnswered(true);
+            Transaction transaction = new Transaction(remoteAddress,
+                    new InetSocketAddress(connection.getLocalAddress().getAddress(), 0),
+                    qData.getTsig(), true, qData.isIgnoreTruncation());
+            if (qData.getListener() == null) {
+                transaction.sendQuery(qData.getQuery(), qData.getId(), qData.getResponseQueue(), qData.getEndTime());
+            } else {
+                transaction.sendQuery(qData.getQuery(), qData.getId(), qData.getListener(), qData.getEndTime());
+            }
+        } else if (!qData.isAnswered()) {
+            qData.setAnswered(true);
+            Timer.cancelTimeout(this, qData);
+            returnResponse(qData.getListener(), qData.getResponseQueue(), data, qData.getQuery(), qData.getTsig(), qData.getId());
+        }
+        closeIfIdle();
+    }
+
+    /**
+     * The socket has been closed. If that wasn't because it was retired, no
+     * more queries are sent on it, and any in flight will time out - unless
+     * the socket could not be opened at all, when they fail straight away.
+     */
+    @Override
+    public void closed(Connection connection) {
+        synchronized (this) {
+            retired = true;
+            closed = true;
+        }
+        Timer.cancelTimeout(this);
+        pool.remove(this);
+        if (connection.getConnectException() != null) {
+            for (QueryData qData : inFlight.values()) {
+                if (inFlight.release(qData.getQuery().getHeader().getID(), qData)) {
+                    returnException(connection.getConnectException(), qData);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop waiting for a query's response.
+     *
+     * @param qData
+     * @return {@literal true} if the query was in flight.
+     */
+    @Override
+    protected boolean disconnect(QueryData qData) {
+        boolean removed = inFlight.release(qData.getQuery().getHeader().getID(), qData);
+        closeIfIdle();
+        return removed;
+    }
+
+    @Override
+    protected void returnException(Exception e, QueryData qData) {
+        if (!qData.isAnswered()) {
+            qData.setAnswered(true);
+            Timer.cancelTimeout(this, qData);
+            returnException(qData.getListener(), qData.getResponseQueue(), e, qData.getId());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.BindException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hands out random local ports for UDP queries. The allocator keeps a bitmap of
+ * the ports which this process has bound, and draws each new port at random
+ * from the ones which are still free, so a port is never tried twice while it
+ * is in use here. When every port is taken, {@link #allocate()} fails at once,
+ * rather than looping over bind attempts which can't succeed.
+ * <p>
+ * The ports come from the same range as
+ * {@link NonblockingResolver#getNewInetSocketAddressWithRandomPort(java.net.InetAddress)}.
+ * Ports bound by other processes aren't known until a bind fails - the caller
+ * then quarantines the port and draws another. A quarantined port is only
+ * handed out again once {@value #QUARANTINE_MILLIS} milliseconds have
+ * passed.</p>
+ */
+public final class PortAllocator {
+
+    /**
+     * The lowest port handed out.
+     */
+    public static final int FIRST_PORT = 1024;
+    /**
+     * The highest port handed out.
+     */
+    public static final int LAST_PORT = 65534;
+    /**
+     * How long a port which failed to bind is kept out of the free set.
+     */
+    public static final long QUARANTINE_MILLIS = 60000;
+    private static final PortAllocator INSTANCE = new PortAllocator(FIRST_PORT, LAST_PORT);
+    private static final Random random = new SecureRandom();
+    private final BitSet inUse = new BitSet(LAST_PORT + 1);
+    // free[0 .. freeCount) holds the ports which are not in use, in no order
+    private final int[] free;
+    private int freeCount;
+    // {port, time it may be used again}, oldest first
+    private final ArrayDeque<long[]> quarantined = new ArrayDeque<>();
+    private final long quarantineMillis;
+
+    PortAllocator(int firstPort, int lastPort) {
+        this(firstPort, lastPort, QUARANTINE_MILLIS);
+    }
+
+    PortAllocator(int firstPort, int lastPort, long quarantineMillis) {
+        if (firstPort < 1 || lastPort > 65535 || firstPort > lastPort) {
+            throw new IllegalArgumentException("Bad port range " + firstPort + "-" + lastPort);
+        }
+        free = new int[lastPort - firstPort + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = firstPort + i;
+        }
+        freeCount = free.length;
+        this.quarantineMillis = quarantineMillis;
+    }
+
+    /**
+     * Get the allocator shared by all connections in this process.
+     *
+     * @return the shared allocator.
+     */
+    public static PortAllocator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Take a random port which is not in use by this process.
+     *
+     * @return the port, which must be given back with {@link #release(int)}
+     * once the socket bound to it is closed.
+     * @throws BindException if every port is in use.
+     */
+    public synchronized int allocate() throws BindException {
+        long now = System.currentTimeMillis();
+        while (!quarantined.isEmpty() && (quarantined.peekFirst()[1] <= now)) {
+            release((int) quarantined.pollFirst()[0]);
+        }
+        if (freeCount == 0) {
+            throw new BindException("No free local ports - all " + free.length + " are in use");
+        }
+        // Swap a random free port to the end of the free set, and take it
+        int i = random.nextInt(freeCount);
+        int port = free[i];
+        free[i] = free[--freeCount];
+        free[freeCount] = port;
+        inUse.set(port);
+        return port;
+    }
+
+    /**
+     * Give back a port taken with {@link #allocate()}. Ports which are not in
+     * use are ignored, so it is safe to release a port more than once.
+     *
+     * @param port the port.
+     */
+    public synchronized void release(int port) {
+        if (port > 0 && inUse.get(port)) {
+            inUse.clear(port);
+            free[freeCount++] = port;
+        }
+    }
+
+    /**
+     * Give back a port taken with {@link #allocate()} which could not be
+     * bound, as something else holds it. The port is not handed out again
+     * until {@value #QUARANTINE_MILLIS} milliseconds have passed.
+     *
+     * @param port the port.
+     */
+    public synchronized void quarantine(int port) {
+        if (port > 0 && inUse.get(port)) {
+            quarantined.addLast(new long[]{port, System.currentTimeMillis() + quarantineMillis});
+        }
+    }
+
+    /**
+     * Get the number of ports which can still be allocated.
+     *
+     * @return the number of free ports.
+     */
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+}
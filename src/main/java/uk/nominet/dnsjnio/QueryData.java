@@ -34,6 +34,9 @@ public class QueryData {
     protected int udpSize;
     private boolean sent = false;
     private boolean answered = false;
+    private TimingWheel.Timeout timeout;
+    private boolean useTCPConnectionPool = false;
+    private int headerId = -1;
 
     public Connection getConnection() {
         return connection;
@@ -138,4 +141,46 @@ public class QueryData {
     public void setAnswered(boolean answered) {
         this.answered = answered;
     }
+
+    /**
+     * Get the handle for this query's timeout, so that it can be cancelled
+     * directly.
+     *
+     * @return the current timeout, or {@literal null} if none has been set.
+     */
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Should this query go over a pooled TCP connection, if it has to be run
+     * over TCP?
+     *
+     * @return {@literal true} if the {@link TCPConnectionPool} is used.
+     */
+    public boolean isUseTCPConnectionPool() {
+        return useTCPConnectionPool;
+    }
+
+    public void setUseTCPConnectionPool(boolean useTCPConnectionPool) {
+        this.useTCPConnectionPool = useTCPConnectionPool;
+    }
+
+    /**
+     * Get the header ID which the caller gave the query. The query may go out
+     * with a different ID, and this one is put back on the response.
+     *
+     * @return the caller's header ID, or -1 if the ID is never rewritten.
+     */
+    public int getHeaderId() {
+        return headerId;
+    }
+
+    public void setHeaderId(int headerId) {
+        this.headerId = headerId;
+    }
 }
@@ -28,6 +28,7 @@ public class ResponderThread extends Thread {
     Message response;
     ResolverListener listener;
     Exception e;
+    Response wrapped;
 
     public ResponderThread(ResolverListener listener, Object id, Message response) {
         this.listener = listener;
@@ -41,8 +42,28 @@ public class ResponderThread extends Thread {
         this.e = e;
     }
 
+    /**
+     * Call the listener back with a response which may still need decoding.
+     * The decoding is done on this thread.
+     *
+     * @param listener the listener to call back.
+     * @param response the response, with its id set.
+     */
+    public ResponderThread(ResolverListener listener, Response response) {
+        this.listener = listener;
+        this.id = response.getId();
+        this.wrapped = response;
+    }
+
     @Override
     public void run() {
+        if (wrapped != null) {
+            if (wrapped.isException()) {
+                e = wrapped.getException();
+            } else {
+                response = wrapped.getMessage();
+            }
+        }
         if (response != null) {
             listener.receiveMessage(id, response);
         } else {
@@ -16,9 +16,14 @@ limitations under the License.
 package uk.nominet.dnsjnio;
 
 import org.xbill.DNS.Message;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.WireParseException;
 
 /**
- * This bean encapsulates the query response.
+ * This bean encapsulates the query response. A response straight off the
+ * wire is held undecoded until it is first looked at, so that the parsing
+ * (and any TSIG verification) happens on the thread which collects it rather
+ * than on an event loop.
  */
 public class Response {
 
@@ -26,20 +31,29 @@ public class Response {
     private Message message;
     private Exception exception;
     private boolean isException = false;
+    // Undecoded response, and what is needed to verify it
+    private byte[] wire;
+    private Message query;
+    private TSIG tsig;
+    // The header ID to put back once the response is verified, or -1
+    private int headerId = -1;
 
     public Object getId() {
         return id;
     }
 
     public Message getMessage() {
+        decode();
         return message;
     }
 
     public Exception getException() {
+        decode();
         return exception;
     }
 
     public boolean isException() {
+        decode();
         return isException;
     }
 
@@ -58,4 +72,52 @@ public class Response {
     public void setException(boolean exception) {
         isException = exception;
     }
+
+    /**
+     * Set the response as it came off the wire. It is decoded, and its TSIG
+     * verified, the first time the response is looked at.
+     *
+     * @param wire the response wire format.
+     * @param query the query this is a response to.
+     * @param tsig the TSIG to verify the response with, or {@literal null}.
+     */
+    void setWire(byte[] wire, Message query, TSIG tsig) {
+        this.wire = wire;
+        this.query = query;
+        this.tsig = tsig;
+    }
+
+    /**
+     * Set the header ID which the caller gave the query, if it went out with
+     * another one. The TSIG covers the ID on the wire, so the caller's ID is
+     * only put back on the message once it has been verified.
+     *
+     * @param headerId the caller's header ID.
+     */
+    void setHeaderId(int headerId) {
+        this.headerId = headerId;
+    }
+
+    /**
+     * Decode the wire format, if there is any. A response which doesn't parse
+     * becomes an exception.
+     */
+    private synchronized void decode() {
+        if (wire == null) {
+            return;
+        }
+        try {
+            message = NonblockingResolver.parseMessage(wire);
+            NonblockingResolver.verifyTSIG(query, message, wire, tsig);
+            if (headerId >= 0) {
+                message.getHeader().setID(headerId);
+            }
+        } catch (WireParseException e) {
+            exception = e;
+            isException = true;
+        }
+        wire = null;
+        query = null;
+        tsig = null;
+    }
 }
@@ -0,0 +1,127 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.ResolverListener;
+
+/**
+ * The future returned by {@link NonblockingResolver#sendAsync(Message)}. It is
+ * handed to the transaction as its listener. No {@link ResponderThread} is
+ * created for it, and the response does not go through a
+ * {@link ResponseQueue}.
+ * <p>
+ * The future is always completed on its executor - the response is decoded
+ * there, and a timeout or other failure is passed there - so stages which
+ * are not async never run on a select thread. The executor is the one given
+ * to {@link NonblockingResolver#sendAsync(Message, Executor)}, or otherwise a
+ * shared pool of {@value #THREADS_PROPERTY} daemon threads (default the number
+ * of processors).</p>
+ */
+final class ResponseFuture extends CompletableFuture<Message> implements ResolverListener {
+
+    /**
+     * System property used to set the number of threads which complete
+     * futures when no executor is given.
+     */
+    static final String THREADS_PROPERTY = "dnsjnio.futureThreads";
+    private final Executor executor;
+
+    /**
+     * Create a future which is completed on the shared pool.
+     */
+    ResponseFuture() {
+        this(DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Create a future which is completed on an executor.
+     *
+     * @param executor the executor.
+     */
+    ResponseFuture(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Decode a response, and complete the future with it, on the executor.
+     *
+     * @param response the response.
+     */
+    void completeWith(final Response response) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (response.isException()) {
+                    completeExceptionally(response.getException());
+                } else {
+                    complete(response.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void receiveMessage(Object id, final Message m) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                complete(m);
+            }
+        });
+    }
+
+    @Override
+    public void handleException(Object id, final Exception e) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * The shared pool, only started when the first future needs it.
+     */
+    private static final class DefaultExecutor {
+
+        static final ExecutorService INSTANCE = create();
+
+        private static ExecutorService create() {
+            int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            final AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DnsFuture-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
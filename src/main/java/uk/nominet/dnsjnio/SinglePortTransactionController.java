@@ -18,22 +18,28 @@ package uk.nominet.dnsjnio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.apache.log4j.Logger;
 import org.xbill.DNS.Flags;
-import org.xbill.DNS.Message;
+import org.xbill.DNS.Header;
 import org.xbill.DNS.ResolverListener;
 
 /**
  * This class provides communication over a single port. Each Resolver will run
  * on a different port, which has one TCP and one UDP connection to a server.
  * When a query comes in, we need to check status of current Connection Either
- * reuse it or reopen it. If a query needs to sent with a header ID which is
- * currently in use on this port, then a new standard Transaction object is used
- * on a new port. When a query ends (response or timeout) then the numQueries
- * should be decremented and the Connection closed if numQueries == 0.
+ * reuse it or reopen it. If a query's header ID is already in use on this
+ * port, then the query goes out with a free ID instead, and the caller's ID is
+ * put back on the response. Only when every ID is in use is a new standard
+ * Transaction object used on a new port. The queries in flight on each
+ * connection are kept in an {@link InFlightTable}, indexed by header ID, and
+ * the queries waiting to be sent are queued in order, apart from the table.
+ * When a query ends (response or timeout) then the numQueries should be
+ * decremented and the Connection closed if numQueries == 0. The TCP connection
+ * may be kept open for a while first, for the next query - see
+ * {@link TCPConnection#setIdleTimeout(long)}.
  *
  * @author Alex Dalitz <alex@caerkettontech.com>
  * @author John Yeary <jyeary@bluelotussoftware.com>
@@ -42,12 +48,20 @@ import org.xbill.DNS.ResolverListener;
 public class SinglePortTransactionController extends AbstractTransaction {
 
     private static final Logger LOG = Logger.getLogger(SinglePortTransactionController.class);
-    // Keep list of outstanding queries (connection, responseQueue, listener, id)
-    // When a packet comes in, get the id, and check all outstanding queries for that id.
-    private Map<Integer, QueryData> tcpQueryDataMap = new HashMap<>();
-    private Map<Integer, QueryData> udpQueryDataMap = new HashMap<>();
+    // Keep table of outstanding queries (connection, responseQueue, listener, id)
+    // When a packet comes in, get the id, and look up the query in that slot.
+    private final InFlightTable tcpInFlight = new InFlightTable();
+    private final InFlightTable udpInFlight = new InFlightTable();
+    // The queries not yet sent, oldest first, so a backlog is sent in one pass
+    private final Queue<QueryData> tcpPending = new ConcurrentLinkedQueue<>();
+    private final Queue<QueryData> udpPending = new ConcurrentLinkedQueue<>();
+    // Stops the idle TCP connection being closed as a new query takes it
+    private final Object tcpLock = new Object();
     private TCPConnection tcpConnection;
     private UDPConnection udpConnection;
+    // Set while the connections are to be closed once nothing is in flight,
+    // and run once they have been. Only changed while holding this.
+    private volatile Runnable onIdleClose;
     protected InetSocketAddress remoteAddress;
     protected InetSocketAddress localAddress;
     static int udpOpenedCount = 0;
@@ -56,57 +70,130 @@ public class SinglePortTransactionController extends AbstractTransaction {
     public SinglePortTransactionController(InetSocketAddress remoteAddr, InetSocketAddress localAddr) {
         this.remoteAddress = remoteAddr;
         this.localAddress = localAddr;
-        synchronized (tcpQueryDataMap) {
-            tcpQueryDataMap = new HashMap();
-        }
-        synchronized (udpQueryDataMap) {
-            udpQueryDataMap = new HashMap();
-        }
     }
 
+    /**
+     * Create a controller whose connections run on a given event loop.
+     *
+     * @param remoteAddr the server.
+     * @param localAddr the local address to bind to.
+     * @param eventLoop the event loop for this controller's connections.
+     */
+    public SinglePortTransactionController(InetSocketAddress remoteAddr, InetSocketAddress localAddr, DnsEventLoop eventLoop) {
+        super(eventLoop);
+        this.remoteAddress = remoteAddr;
+        this.localAddress = localAddr;
+    }
+
+    /**
+     * Get the number of queries in flight on this port, over UDP and TCP.
+     *
+     * @return the number of queries in flight.
+     */
+    public int getInFlightCount() {
+        return tcpInFlight.size() + udpInFlight.size();
+    }
+
+    /**
+     * Is a header ID free on this port? Queries no longer need to check this
+     * first - a query whose ID is in use goes out with a free one.
+     *
+     * @param id the header ID.
+     * @return {@literal true} if no query in flight has the ID.
+     */
     public boolean headerIdNotInUse(int id) {
-        // Search the queryDataList for this ID.
-        synchronized (tcpQueryDataMap) {
-            if (tcpQueryDataMap.keySet().contains(new Integer(id))) {
-                return false;
-            }
+        return (tcpInFlight.get(id) == null) && (udpInFlight.get(id) == null);
+    }
+
+    /**
+     * Close the connections once no query is in flight on them - straight
+     * away, if none is. A query sent after that opens them again.
+     *
+     * @param onClosed run on the event loop once the connections are closed.
+     */
+    void closeWhenIdle(Runnable onClosed) {
+        synchronized (this) {
+            onIdleClose = onClosed;
         }
-        synchronized (udpQueryDataMap) {
-            if (udpQueryDataMap.keySet().contains(new Integer(id))) {
-                return false;
+        closeIfIdle();
+    }
+
+    /**
+     * Keep the connections open after all.
+     *
+     * @see #closeWhenIdle(Runnable)
+     */
+    synchronized void cancelClose() {
+        onIdleClose = null;
+    }
+
+    private void closeIfIdle() {
+        synchronized (this) {
+            final Runnable onClosed = onIdleClose;
+            if ((onClosed == null) || (getInFlightCount() > 0)) {
+                return;
+            }
+            onIdleClose = null;
+            final TCPConnection tcp;
+            synchronized (tcpLock) {
+                tcp = tcpConnection;
+                tcpConnection = null;
             }
+            final UDPConnection udp = udpConnection;
+            udpConnection = null;
+            // Queued before any connect for a new query, so the port is
+            // free again by the time that runs
+            eventLoop.invoke(new Runnable() {
+                @Override
+                public void run() {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Closing single port connections to " + remoteAddress);
+                    }
+                    disconnect(tcp);
+                    disconnect(udp);
+                    onClosed.run();
+                }
+            });
         }
-        return true;
     }
 
     /**
      * Instantiate a new Connection, and start the connect process.
      */
     protected void startConnect(QueryData qData) {
-        startTimer(qData);
+        int headerId = qData.getQuery().getHeader().getID();
         if (qData.isTcp()) {
-            synchronized (tcpQueryDataMap) {
-                tcpQueryDataMap.put(new Integer(qData.getQuery().getHeader().getID()), qData);
+            TCPConnection connection;
+            synchronized (tcpLock) {
+                headerId = tcpInFlight.claimFree(headerId, qData);
+                if (headerId < 0) {
+                    sendOnNewPort(qData);
+                    return;
+                }
+                connection = tcpConnection;
             }
-            if (tcpConnection != null) {
+            setHeaderId(qData, headerId);
+            startTimer(qData);
+            tcpPending.add(qData);
+            if (connection != null) {
                 // Deal with current state of tcpConnection
                 // Is the connection open? If so, send the query now
                 // If connection opening, then queue query now
                 // If connection closing, then reopen, and send query. Do we need to worry about queues?
                 // Add this query to the list for the connection
-                qData.setConnection(tcpConnection);
+                qData.setConnection(connection);
                 // Connection may not be ready just yet!
                 // Connection could still be opening - if so, then wait until open. Simply stick query in queue, and be done
-                if (tcpConnection.getState() == Connection.State.OPENING) {
+                if (connection.getState() == Connection.State.OPENING) {
                     return;
                 }
-                if (tcpConnection.getState() == Connection.State.OPENED) {
-                    readyToSend(tcpConnection);
+                if (connection.getState() == Connection.State.OPENED) {
+                    readyToSend(connection);
                     return;
-                } else if (tcpConnection.getState() == Connection.State.CLOSING) {
+                } else if (connection.getState() == Connection.State.CLOSING) {
                     // The query is in the queue. When the socket is closed, it will reconnect
                     return;
-                } else if (tcpConnection.getState() == Connection.State.CLOSED) {
+                } else if (connection.getState() == Connection.State.CLOSED) {
                     // Reopen the connection
                     getNewTcpConnection(qData);
                 }
@@ -115,9 +202,14 @@ public class SinglePortTransactionController extends AbstractTransaction {
                 getNewTcpConnection(qData);
             }
         } else {
-            synchronized (udpQueryDataMap) {
-                udpQueryDataMap.put(qData.getQuery().getHeader().getID(), qData);
+            headerId = udpInFlight.claimFree(headerId, qData);
+            if (headerId < 0) {
+                sendOnNewPort(qData);
+                return;
             }
+            setHeaderId(qData, headerId);
+            startTimer(qData);
+            udpPending.add(qData);
             if (udpConnection != null && !(udpConnection.getState() == Connection.State.CLOSED)) {
                 // Use this connection
                 // Add this query to the list for the connection
@@ -142,12 +234,49 @@ public class SinglePortTransactionController extends AbstractTransaction {
     }
 
     private void getNewTcpConnection(QueryData qData) {
-        tcpConnection = new TCPConnection(this, Connection.SINGLE_PORT_BUFFER_SIZE);
-        qData.setConnection(tcpConnection);
+        synchronized (tcpLock) {
+            tcpConnection = new TCPConnection(this, Connection.SINGLE_PORT_BUFFER_SIZE, eventLoop);
+            qData.setConnection(tcpConnection);
+        }
+    }
+
+    /**
+     * Send the query out with the header ID of the slot it claimed. The
+     * caller's ID is kept, to put back on the response.
+     */
+    private static void setHeaderId(QueryData qData, int headerId) {
+        Header header = qData.getQuery().getHeader();
+        if (header.getID() != headerId) {
+            if (qData.getHeaderId() < 0) {
+                qData.setHeaderId(header.getID());
+            }
+            header.setID(headerId);
+        }
+    }
+
+    /**
+     * Every header ID is in use on this port. Send the query on its own port
+     * instead, with the caller's header ID.
+     */
+    private void sendOnNewPort(QueryData qData) {
+        if (qData.getHeaderId() >= 0) {
+            qData.getQuery().getHeader().setID(qData.getHeaderId());
+        }
+        Transaction transaction = new Transaction(remoteAddress,
+                new InetSocketAddress(localAddress.getAddress(), 0),
+                qData.getTsig(), qData.isTcp(), qData.isIgnoreTruncation());
+        if (!qData.isTcp()) {
+            transaction.setUdpSize(qData.getUdpSize());
+        }
+        if (qData.getListener() == null) {
+            transaction.sendQuery(qData.getQuery(), qData.getId(), qData.getResponseQueue(), qData.getEndTime());
+        } else {
+            transaction.sendQuery(qData.getQuery(), qData.getId(), qData.getListener(), qData.getEndTime());
+        }
     }
 
     private void getNewUdpConnection(QueryData qData) {
-        udpConnection = new SinglePortUDPConnection(this, localAddress.getPort());
+        udpConnection = new SinglePortUDPConnection(this, localAddress.getPort(), eventLoop);
         qData.setConnection(udpConnection);
     }
 
@@ -207,20 +336,71 @@ public class SinglePortTransactionController extends AbstractTransaction {
     protected boolean disconnect(QueryData qData) {
         // We only want to disconnect if there are no outstanding queries on that connection
         // Remove this query from the list
-        Map queryMap = getQueryDataMap(qData.getConnection());
-        boolean disconnect = false;
-        synchronized (queryMap) {
-            queryMap.remove(qData.getQuery().getHeader().getID());
-            if (queryMap.isEmpty()) {
-                disconnect = true;
+        InFlightTable inFlight = getInFlight(qData);
+        inFlight.release(qData.getQuery().getHeader().getID(), qData);
+        if (inFlight.isEmpty()) {
+            if (inFlight == tcpInFlight) {
+                closeTcpIfIdle();
+            } else {
+                disconnect(qData.getConnection());
             }
         }
-        if (disconnect) {
-            disconnect(qData.getConnection());
+        if (onIdleClose != null) {
+            closeIfIdle();
         }
         return true;
     }
 
+    /**
+     * Close the TCP connection once it has nothing in flight - straight away,
+     * or after the idle timeout if it is kept open for more queries.
+     */
+    private void closeTcpIfIdle() {
+        long idleTimeout = TCPConnection.getIdleTimeout();
+        if (idleTimeout > 0) {
+            Timer.addTimeout(System.currentTimeMillis() + idleTimeout, this);
+            return;
+        }
+        TCPConnection idle = null;
+        synchronized (tcpLock) {
+            if (tcpInFlight.isEmpty()) {
+                // The next query opens a new connection
+                idle = tcpConnection;
+                tcpConnection = null;
+            }
+        }
+        disconnect(idle);
+    }
+
+    /**
+     * Called with a query's timeout, or with {@literal null} when the TCP
+     * connection's idle timer expires. The connection is only closed if
+     * nothing has been sent on it since.
+     *
+     * @param qData the query which has timed out, or {@literal null}.
+     */
+    @Override
+    public void timedOut(QueryData qData) {
+        if (qData != null) {
+            super.timedOut(qData);
+            return;
+        }
+        TCPConnection idle = null;
+        synchronized (tcpLock) {
+            if (tcpInFlight.isEmpty()) {
+                // The next query opens a new connection
+                idle = tcpConnection;
+                tcpConnection = null;
+            }
+        }
+        if (idle != null) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Closing idle TCP connection on port " + idle.localPort);
+            }
+            disconnect(idle);
+        }
+    }
+
     /**
      * Called to say that we are readyToSend. We can now send the data.
      *
@@ -228,36 +408,30 @@ public class SinglePortTransactionController extends AbstractTransaction {
      */
     @Override
     public void readyToSend(Connection connection) {
-        QueryData qData = null;
-        do {
-            qData = getNextQueryData(connection);
-            if (qData != null) {
-                qData.setSent(true);
-                sendQuery(connection, qData.getQuery());
+        Queue<QueryData> pending = getPending(connection);
+        QueryData qData;
+        while ((qData = pending.poll()) != null) {
+            if (qData.isSent() || qData.isAnswered()) {
+                continue;
             }
-        } while (qData != null);
+            // Responses are matched on the header ID alone, so a query left
+            // behind by a connection which was replaced can go on this one
+            qData.setConnection(connection);
+            qData.setSent(true);
+            sendQuery(connection, qData.getQuery());
+        }
     }
 
-    private QueryData getNextQueryData(Connection c) {
-        Map queryMap = getQueryDataMap(c);
-        synchronized (queryMap) {
-            // @todo Can we optimise this?
-            for (Iterator it = queryMap.values().iterator(); it.hasNext();) {
-                QueryData qData = (QueryData) (it.next());
-                if (!(qData.isSent()) && (qData.getConnection() == c)) {
-                    return qData;
-                }
-            }
-        }
-        return null;
+    private Queue<QueryData> getPending(Connection c) {
+        return (c instanceof TCPConnection) ? tcpPending : udpPending;
     }
 
-    private Map getQueryDataMap(Connection c) {
-        Map queryMap = udpQueryDataMap;
-        if ((tcpConnection != null) && (c.equals(tcpConnection))) {
-            queryMap = tcpQueryDataMap;
-        }
-        return queryMap;
+    private InFlightTable getInFlight(Connection c) {
+        return (c instanceof TCPConnection) ? tcpInFlight : udpInFlight;
+    }
+
+    private InFlightTable getInFlight(QueryData qData) {
+        return qData.isTcp() ? tcpInFlight : udpInFlight;
     }
 
     /**
@@ -268,11 +442,30 @@ public class SinglePortTransactionController extends AbstractTransaction {
     @Override
     public void closed(Connection connection) {
         // See if any queries are still outstanding for that Connection.
-        Map queryMap = getQueryDataMap(connection);
+        List<QueryData> inFlight = getInFlight(connection).values();
+        IOException e = connection.getConnectException();
+        List<QueryData> failed = null;
         boolean reconnect = false;
-        synchronized (queryMap) {
-            if (!queryMap.isEmpty()) {
+        if (!inFlight.isEmpty()) {
+            if (e != null) {
+                // It couldn't be opened - don't keep trying
+                failed = inFlight;
+            } else {
                 reconnect = true;
+                // The far end closed it - send everything not yet
+                // answered again on the new connection
+                Queue<QueryData> pending = getPending(connection);
+                for (QueryData qData : inFlight) {
+                    if (qData.isSent() && (qData.getConnection() == connection)) {
+                        qData.setSent(false);
+                        pending.add(qData);
+                    }
+                }
+            }
+        }
+        if (failed != null) {
+            for (QueryData qData : failed) {
+                returnException(e, qData);
             }
         }
         if (reconnect) {
@@ -282,66 +475,59 @@ public class SinglePortTransactionController extends AbstractTransaction {
     }
 
     /**
-     * A packet is available. Decode it and act accordingly. If the packet is
+     * A packet is available. Route it using its header. If the packet is
      * truncated over UDP, and ignoreTruncation is false, then a tcp query is
-     * run to return the whole response.
+     * run to return the whole response. The rest of the packet is decoded by
+     * whoever collects the response.
      *
      * @param data
+     * @param header
      * @param connection
      */
     @Override
-    public void dataAvailable(byte[] data, Connection connection) {
-        // Now get the data, and send it back to the listener.
+    public void dataAvailable(byte[] data, Header header, Connection connection) {
+        // Now send the data back to the listener.
         // Match up the returned qData with the QueryDataList
-        try {
-            Message message = NonblockingResolver.parseMessage(data);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("dataAvailable(" + data.length + " bytes) from port " + connection.localPort);
+            LOG.trace(header);
+        }
 
-            if (message != null && LOG.isTraceEnabled()) {
-                LOG.trace("dataAvailable(" + data.length + " bytes) from port " + connection.localPort);
-                LOG.trace(message);
-            }
+        QueryData qData = null;
 
-            QueryData qData = null;
+        // Look up the slot for this connection
+        qData = getInFlight(connection).get(header.getID());
+        if (qData == null) {
+            return; // @todo !!!
+        }
+        disconnect(qData);
 
-            // Search the list for this connection
-            Map queryMap = getQueryDataMap(connection);
-            synchronized (queryMap) {
-                qData = (QueryData) (queryMap.get(message.getHeader().getID()));
-            }
-            if (qData == null) {
-                return; // @todo !!!
-            }
-            disconnect(qData);
-
-            NonblockingResolver.verifyTSIG(qData.getQuery(), message, data, qData.getTsig());
-            // Now check that we got the whole message, if we're asked to do so
-            if (!qData.isTcp() && !qData.isIgnoreTruncation()
-                    && message.getHeader().getFlag(Flags.TC)) {
-                cancelTimer(qData);
-                // Redo the query, but use tcp this time.
-                qData.setTcp(true);
-                // Now start again with a TCP connection
-                startConnect(qData);
-                return;
-            }
-//            System.out.println("Returning id = " + qData.getId() + ", header id " + qData.getQuery().getHeader().getID());
-            returnResponse(message, qData);
-        } catch (IOException e) {
-            // Ignore it. Query will time out eventually.
+        // Now check that we got the whole message, if we're asked to do so
+        if (!qData.isTcp() && !qData.isIgnoreTruncation()
+                && header.getFlag(Flags.TC)) {
+            cancelTimer(qData);
+            // Redo the query, but use tcp this time.
+            qData.setTcp(true);
+            qData.setSent(false);
+            // Now start again with a TCP connection
+            startConnect(qData);
+            return;
         }
+//            System.out.println("Returning id = " + qData.getId() + ", header id " + qData.getQuery().getHeader().getID());
+        returnResponse(data, qData);
     }
 
     /**
      * Return the response to the listener
      *
-     * @param message the response
+     * @param data the response wire format
      */
-    private void returnResponse(Message message, QueryData qData) {
+    private void returnResponse(byte[] data, QueryData qData) {
         if (!qData.isAnswered()) {
             qData.setAnswered(true);
             // Stop the timer!
             cancelTimer(qData);
-            returnResponse(qData.getListener(), qData.getResponseQueue(), message, qData.getId());
+            returnResponse(qData.getListener(), qData.getResponseQueue(), data, qData.getQuery(), qData.getTsig(), qData.getId(), qData.getHeaderId());
         }
     }
 
@@ -368,9 +554,9 @@ public class SinglePortTransactionController extends AbstractTransaction {
     private void cancelTimer(QueryData qData) {
         Timer.cancelTimeout(this, qData);
         qData.setResponded(true);
-        Map queryMap = getQueryDataMap(qData.getConnection());
-        synchronized (queryMap) {
-            queryMap.remove(qData.getQuery().getHeader().getID());
+        getInFlight(qData).release(qData.getQuery().getHeader().getID(), qData);
+        if (onIdleClose != null) {
+            closeIfIdle();
         }
     }
 
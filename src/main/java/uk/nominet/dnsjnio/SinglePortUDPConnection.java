@@ -16,6 +16,7 @@ limitations under the License.
  */
 package uk.nominet.dnsjnio;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.DatagramChannel;
 import org.apache.log4j.Logger;
@@ -36,10 +37,20 @@ public class SinglePortUDPConnection extends UDPConnection {
         super(listener, SINGLE_PORT_BUFFER_SIZE);
     }
 
+    public SinglePortUDPConnection(ConnectionListener listener, int port, DnsEventLoop eventLoop) {
+        super(listener, SINGLE_PORT_BUFFER_SIZE, eventLoop);
+    }
+
+    /**
+     * Bind to the fixed local port and connect. If that fails - most often
+     * because something else holds the port - the queries waiting for the
+     * connection fail straight away rather than timing out.
+     */
     @Override
     protected void connect() {
+        DatagramChannel sch = null;
         try {
-            DatagramChannel sch = DatagramChannel.open();
+            sch = DatagramChannel.open();
             sch.configureBlocking(false);
             sch.socket().setReuseAddress(true);
             sch.socket().bind(localAddress);
@@ -50,12 +61,22 @@ public class SinglePortUDPConnection extends UDPConnection {
                 LOG.trace("UDP connection bound to port " + localPort);
             }
 
-            sk = sch.register(DnsController.getSelector(), 0);
+            sk = sch.register(eventLoop.getSelector(), 0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch (Exception e) {
-            LOG.error("Exception while connecting socket on port " + localPort, e);
-            close();
+            LOG.error("Exception while connecting socket on port " + localAddress.getPort(), e);
+            if (sk != null) {
+                sk.cancel();
+            }
+            if (sch != null) {
+                try {
+                    sch.close();
+                } catch (IOException ce) {
+                    LOG.trace("Exception closing unconnected DatagramChannel", ce);
+                }
+            }
+            connectFailed(e instanceof IOException ? (IOException) e : new IOException(e));
         }
     }
 }
@@ -0,0 +1,299 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.xbill.DNS.ResolverListener;
+
+/**
+ * Single port mode spread over several stripes. Each stripe is a
+ * {@link SinglePortTransactionController}, with its own UDP and TCP connection
+ * to the server, and so its own 65536 header IDs and its own socket buffers.
+ * Each query goes to the stripe with the fewest queries in flight, so K
+ * stripes can carry K &times; 65536 queries at once.
+ * <p>
+ * If the {@value #OWN_EVENT_LOOPS_PROPERTY} system property is
+ * {@literal true} (the default), each stripe takes the next event loop from
+ * the {@link DnsController}, so the stripes are spread over the loops.
+ * Otherwise all the stripes share one loop.</p>
+ * <p>
+ * The first stripe binds to the local address it is given. The others bind to
+ * a random port on the same local address, as they cannot share a port.</p>
+ * <p>
+ * Resolvers share controllers through {@link #acquire(InetSocketAddress,
+ * InetSocketAddress, int)}, so all the resolvers using the same server, local
+ * address and number of stripes send over the same ports. Everything which is
+ * set per resolver, such as the TSIG key and EDNS, travels with each query in
+ * its {@link QueryData}. When its last resolver releases a shared controller,
+ * each stripe closes its connections once its queries have finished. The
+ * controller stays in the registry until they have all closed, so a resolver
+ * which takes it again in the meantime keeps it going, rather than trying to
+ * bind a second socket to the same local port.</p>
+ *
+ * @see NonblockingResolver#setSinglePortStripes(int)
+ */
+public class StripedTransactionController {
+
+    /**
+     * System property used to give each stripe its own event loop.
+     */
+    public static final String OWN_EVENT_LOOPS_PROPERTY = "dnsjnio.stripeOwnEventLoops";
+    private static final boolean ownEventLoops = Boolean.parseBoolean(
+            System.getProperty(OWN_EVENT_LOOPS_PROPERTY, "true"));
+    // The shared controllers, and how many resolvers hold each one
+    private static final Map<Key, StripedTransactionController> shared = new HashMap<>();
+    private final SinglePortTransactionController[] stripes;
+    private int next = 0;
+    private Key key;
+    private int references;
+    // The stripes still to close since the last share was released, and
+    // which release that was, so a close from an earlier one isn't counted
+    private int openStripes;
+    private int closeGeneration;
+
+    /**
+     * Create the stripes for a server.
+     *
+     * @param remoteAddr the server.
+     * @param localAddr the local address to bind the first stripe to.
+     * @param numStripes the number of stripes, at least 1.
+     */
+    public StripedTransactionController(InetSocketAddress remoteAddr, InetSocketAddress localAddr, int numStripes) {
+        this(remoteAddr, localAddr, numStripes, ownEventLoops);
+    }
+
+    StripedTransactionController(InetSocketAddress remoteAddr, InetSocketAddress localAddr, int numStripes, boolean ownEventLoops) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("Need at least one stripe, not " + numStripes);
+        }
+        stripes = new SinglePortTransactionController[numStripes];
+        DnsEventLoop eventLoop = DnsController.next();
+        for (int i = 0; i < numStripes; i++) {
+            if (ownEventLoops && (i > 0)) {
+                eventLoop = DnsController.next();
+            }
+            stripes[i] = new SinglePortTransactionController(remoteAddr, stripeAddress(localAddr, i), eventLoop);
+        }
+    }
+
+    /**
+     * Take a share of the controller for a server, local address and number of
+     * stripes, creating it if no resolver holds one yet.
+     *
+     * @param remoteAddr the server.
+     * @param localAddr the local address to bind the first stripe to.
+     * @param numStripes the number of stripes, at least 1.
+     * @return the shared controller. Give it back with {@link #release()}.
+     */
+    public static StripedTransactionController acquire(InetSocketAddress remoteAddr, InetSocketAddress localAddr, int numStripes) {
+        Key key = new Key(remoteAddr, localAddr, numStripes);
+        synchronized (shared) {
+            StripedTransactionController controller = shared.get(key);
+            if (controller == null) {
+                controller = new StripedTransactionController(remoteAddr, localAddr, numStripes);
+                controller.key = key;
+                shared.put(key, controller);
+            } else if (controller.references == 0) {
+                // Still closing - keep it open instead
+                for (SinglePortTransactionController stripe : controller.stripes) {
+                    stripe.cancelClose();
+                }
+            }
+            controller.references++;
+            return controller;
+        }
+    }
+
+    /**
+     * Give back a share taken with {@link #acquire(InetSocketAddress,
+     * InetSocketAddress, int)}. Queries already sent carry on to the end. When
+     * the last share is given back, the stripes close their connections once
+     * those queries have finished.
+     */
+    public void release() {
+        synchronized (shared) {
+            if ((key == null) || (references == 0)) {
+                return;
+            }
+            references--;
+            if (references > 0) {
+                return;
+            }
+            openStripes = stripes.length;
+            final int generation = ++closeGeneration;
+            for (SinglePortTransactionController stripe : stripes) {
+                // The stripes report back on their event loops, never here
+                stripe.closeWhenIdle(new Runnable() {
+                    @Override
+                    public void run() {
+                        stripeClosed(generation);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A stripe has closed its connections. Once they all have, the controller
+     * leaves the registry.
+     */
+    private void stripeClosed(int generation) {
+        synchronized (shared) {
+            if ((key == null) || (references > 0) || (generation != closeGeneration)) {
+                // Taken again, or released again since
+                return;
+            }
+            if (--openStripes == 0) {
+                shared.remove(key);
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * Has the last share been released, and every stripe closed?
+     *
+     * @return {@literal true} once the controller has left the registry.
+     */
+    boolean isClosed() {
+        synchronized (shared) {
+            return (key == null) && (references == 0);
+        }
+    }
+
+    /**
+     * Get the number of resolvers sharing this controller.
+     *
+     * @return the number of shares held.
+     */
+    public int getReferenceCount() {
+        synchronized (shared) {
+            return references;
+        }
+    }
+
+    private static InetSocketAddress stripeAddress(InetSocketAddress localAddr, int stripe) {
+        if ((stripe == 0) || (localAddr.getPort() == 0)) {
+            return localAddr;
+        }
+        return new InetSocketAddress(localAddr.getAddress(), 0);
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    SinglePortTransactionController getStripe(int stripe) {
+        return stripes[stripe];
+    }
+
+    /**
+     * Get the number of queries in flight over all the stripes.
+     *
+     * @return the number of queries in flight.
+     */
+    public int getInFlightCount() {
+        int count = 0;
+        for (SinglePortTransactionController stripe : stripes) {
+            count += stripe.getInFlightCount();
+        }
+        return count;
+    }
+
+    /**
+     * Send a query down the least loaded stripe.
+     *
+     * @param qData
+     * @param id
+     * @param responseQueue
+     * @param endTime
+     */
+    public void sendQuery(QueryData qData, Object id, ResponseQueue responseQueue, long endTime) {
+        leastLoaded().sendQuery(qData, id, responseQueue, endTime);
+    }
+
+    /**
+     * Send a query down the least loaded stripe, using a ResolverListener.
+     *
+     * @param qData
+     * @param id
+     * @param listener
+     * @param endTime
+     */
+    public void sendQuery(QueryData qData, Object id, ResolverListener listener, long endTime) {
+        leastLoaded().sendQuery(qData, id, listener, endTime);
+    }
+
+    /**
+     * Find the stripe with the fewest queries in flight. The search starts
+     * from a different stripe each time, so stripes with the same load take
+     * turns.
+     */
+    SinglePortTransactionController leastLoaded() {
+        if (stripes.length == 1) {
+            return stripes[0];
+        }
+        int start;
+        synchronized (this) {
+            start = next;
+            next = (next + 1) % stripes.length;
+        }
+        SinglePortTransactionController best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < stripes.length; i++) {
+            SinglePortTransactionController stripe = stripes[(start + i) % stripes.length];
+            int count = stripe.getInFlightCount();
+            if (count < bestCount) {
+                best = stripe;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    private static final class Key {
+
+        private final InetSocketAddress remoteAddress;
+        private final InetSocketAddress localAddress;
+        private final int numStripes;
+
+        Key(InetSocketAddress remoteAddress, InetSocketAddress localAddress, int numStripes) {
+            this.remoteAddress = remoteAddress;
+            this.localAddress = localAddress;
+            this.numStripes = numStripes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return remoteAddress.equals(other.remoteAddress)
+                    && localAddress.equals(other.localAddress)
+                    && (numStripes == other.numStripes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{remoteAddress, localAddress, numStripes});
+        }
+    }
+}
@@ -17,10 +17,12 @@ limitations under the License.
 package uk.nominet.dnsjnio;
 
 import java.io.IOException;
+import java.net.BindException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import org.apache.log4j.Logger;
 
 /**
@@ -32,8 +34,20 @@ import org.apache.log4j.Logger;
  */
 public class TCPConnection extends Connection {
 
+    /**
+     * System property used to set how long, in milliseconds, a connection
+     * with nothing in flight is kept open for more queries.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "dnsjnio.tcpIdleTimeoutMillis";
     private static final Logger LOG = Logger.getLogger(TCPConnection.class);
+    private static volatile long idleTimeout = Math.max(0, Long.getLong(IDLE_TIMEOUT_PROPERTY, 0));
+    // Most messages written with one gathering write
+    static final int MAX_GATHER = 512;
+    // Random ports which fail to bind are already in use - try this many
+    private static final int MAX_BIND_ATTEMPTS = 8;
     boolean packetInProgress = false;
+    // Length bytes for the messages being written, reused for every write
+    private ByteBuffer lengths;
 
     public TCPConnection(ConnectionListener listener) {
         super(listener);
@@ -43,6 +57,36 @@ public class TCPConnection extends Connection {
         super(listener, buffSize);
     }
 
+    public TCPConnection(ConnectionListener listener, int buffSize, DnsEventLoop eventLoop) {
+        super(listener, buffSize, eventLoop);
+    }
+
+    /**
+     * Get how long a connection with nothing in flight is kept open.
+     *
+     * @return the idle timeout in milliseconds, or 0 if connections are
+     * closed as soon as they are idle.
+     */
+    public static long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long a connection to a server with nothing in flight is kept
+     * open, so that later queries can use it without another handshake (see
+     * RFC 7766). The default is read from the {@value #IDLE_TIMEOUT_PROPERTY}
+     * system property, and is 0, which closes connections as soon as their
+     * last query has finished.
+     *
+     * @param millis the idle timeout in milliseconds.
+     */
+    public static void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Idle timeout can't be negative, was " + millis);
+        }
+        idleTimeout = millis;
+    }
+
     protected boolean close() {
         boolean didClose = false;
         if (getState() != State.CLOSED) {
@@ -53,7 +97,7 @@ public class TCPConnection extends Connection {
                 if (sc != null && sc.isOpen()) {
                     didClose = true;
                     if (getState() == State.OPENED) {
-                        sk.interestOps(0);
+                        setInterestOps(0);
                         setState(State.CLOSING);
                         Socket sock = sc.socket();
                         try {
@@ -73,16 +117,46 @@ public class TCPConnection extends Connection {
 
     @Override
     protected void connect() {
+        SocketChannel sch = null;
         try {
-            SocketChannel sch = SocketChannel.open();
+            sch = SocketChannel.open();
             sch.configureBlocking(false);
-            sch.socket().bind(localAddress);
-            sk = sch.register(DnsController.getSelector(), 0);
+            // A port of 0 means pick a random one here - don't leave it to
+            // the OS! If that port is already in use, pick another, but give
+            // up after a few tries. A port which was given is only tried once.
+            boolean random = localAddress.getPort() == 0;
+            int attempts = 0;
+            while (true) {
+                if (random) {
+                    localAddress = NonblockingResolver.getNewInetSocketAddressWithRandomPort(localAddress.getAddress());
+                }
+                try {
+                    sch.socket().bind(localAddress);
+                    break;
+                } catch (BindException e) {
+                    if (!random || ++attempts >= MAX_BIND_ATTEMPTS) {
+                        throw e;
+                    }
+                    LOG.trace("TCPConnection can't bind to port " + localAddress.getPort() + " - trying another");
+                    // The channel can't be bound again - open a fresh one
+                    sch.close();
+                    sch = SocketChannel.open();
+                    sch.configureBlocking(false);
+                }
+            }
+            sk = sch.register(eventLoop.getSelector(), 0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch (Exception e) {
-            e.printStackTrace(System.err);
-            close();
+            LOG.warn("Can't connect TCPConnection to " + remoteAddress + ": " + e);
+            if (sch != null && sk == null) {
+                try {
+                    sch.close();
+                } catch (IOException ce) {
+                    LOG.trace("Exception closing unconnected SocketChannel", ce);
+                }
+            }
+            connectFailed(e instanceof IOException ? (IOException) e : new IOException(e));
         }
     }
 
@@ -94,11 +168,11 @@ public class TCPConnection extends Connection {
         SocketChannel sc = (SocketChannel) sk.channel();
         try {
             sc.finishConnect();
-            sk.interestOps(SelectionKey.OP_WRITE);
+            readyForIO();
             setState(State.OPENED);
         } catch (IOException e) {
-            e.printStackTrace(System.err);
-            closeComplete();
+            LOG.debug("Can't connect TCPConnection to " + remoteAddress + ": " + e);
+            connectFailed(e);
         }
     }
 
@@ -107,25 +181,64 @@ public class TCPConnection extends Connection {
         SocketChannel sc = (SocketChannel) sk.channel();
         // Read the next set of bytes
         readFromChannel(sc);
-        // while we have more than 2 bytes :
-        while (recvCount > 2) {
-            //      Work out the length of the next packet to expect.
-            if (recvBytes == null) {
-                break;
+        ByteBuffer buf = inBuf;
+        if (buf == null) {
+            return;
+        }
+        buf.flip();
+        byte[] packet;
+        while ((packet = nextFrame(buf)) != null) {
+            sendToUser(packet);
+            if (inBuf != buf) {
+                // The listener closed us, and the buffer has gone back to the pool
+                return;
             }
-            int lengthNextPacket = ((recvBytes[0] & 0xFF) << 8) + (recvBytes[1] & 0xFF);
-            //      If we have that many bytes, then split the packet off, and clear the front of the recvBuffer
-            if (recvCount >= (lengthNextPacket + 2)) {
-                // Split off the packet, send it to the user, and clear the front of the buffer
-                byte[] packet = new byte[lengthNextPacket];
-                System.arraycopy(recvBytes, 2, packet, 0, lengthNextPacket);
-                sendToUser(packet);
-                // Now clear the buffer
-                clearRecvBytes(lengthNextPacket + 2);
-            } else {
-                break;
+        }
+        inBuf = compact(buf);
+    }
+
+    /**
+     * Split the next length-prefixed message off the front of a buffer. The
+     * message is copied out once, and the buffer is left positioned after it.
+     *
+     * @param buf a buffer flipped ready for reading.
+     * @return the message, or {@literal null} if the whole of it has not yet
+     * arrived.
+     */
+    static byte[] nextFrame(ByteBuffer buf) {
+        if (buf.remaining() < 2) {
+            return null;
+        }
+        int length = buf.getShort(buf.position()) & 0xFFFF;
+        if (buf.remaining() < length + 2) {
+            return null;
+        }
+        buf.position(buf.position() + 2);
+        byte[] packet = new byte[length];
+        buf.get(packet);
+        return packet;
+    }
+
+    /**
+     * Move any partial message to the front of the buffer, ready for the next
+     * read. If the partial message will not fit in the buffer, it is moved to
+     * a larger one from the pool instead.
+     *
+     * @param buf a buffer which has been read by {@link #nextFrame}.
+     * @return the buffer to read in to next.
+     */
+    static ByteBuffer compact(ByteBuffer buf) {
+        if (buf.remaining() >= 2) {
+            int needed = (buf.getShort(buf.position()) & 0xFFFF) + 2;
+            if (needed > buf.capacity()) {
+                ByteBuffer bigger = BufferPool.acquire(needed);
+                bigger.put(buf);
+                BufferPool.release(buf);
+                return bigger;
             }
         }
+        buf.compact();
+        return buf;
     }
 
     @Override
@@ -148,14 +261,95 @@ public class TCPConnection extends Connection {
         }
     }
 
-    // Add on the length bytes
+    /**
+     * Write out everything queued with gathering writes. Each message goes out
+     * behind its two length bytes, which are taken from one small reusable
+     * buffer, so the message itself is never copied. A burst of pipelined
+     * queries is written with one syscall for every {@value #MAX_GATHER}
+     * messages.
+     */
     @Override
-    protected byte[] decorateData(byte[] bytes) {
-        byte[] ret = new byte[bytes.length + 2];
-        System.arraycopy(bytes, 0, ret, 2, bytes.length);
-        ret[0] = (byte) (bytes.length >>> 8);
-        ret[1] = (byte) (bytes.length & 0xFF);
-        return ret;
+    protected void writeQueued() {
+        while (writeReady && sendQ.size() > 0) {
+            if (lengths == null) {
+                lengths = ByteBuffer.allocate(2 * MAX_GATHER);
+            }
+            write(frames(sendQ, lengths));
+        }
+    }
+
+    /**
+     * Take up to {@value #MAX_GATHER} messages off the front of a queue, and
+     * frame each of them with its length.
+     *
+     * @param queue the queue of messages to send.
+     * @param lengths a buffer to hold the length bytes, which must have room
+     * for two bytes per message. Anything in it is overwritten.
+     * @return buffers for the length and then the message, for each message.
+     */
+    static ByteBuffer[] frames(List queue, ByteBuffer lengths) {
+        int count = Math.min(queue.size(), lengths.capacity() / 2);
+        ByteBuffer[] srcs = new ByteBuffer[count * 2];
+        for (int i = 0; i < count; i++) {
+            byte[] msg = (byte[]) queue.remove(0);
+            lengths.putShort(i * 2, (short) msg.length);
+            ByteBuffer length = lengths.duplicate();
+            length.limit(i * 2 + 2);
+            length.position(i * 2);
+            srcs[i * 2] = length;
+            srcs[i * 2 + 1] = ByteBuffer.wrap(msg);
+        }
+        return srcs;
+    }
+
+    /**
+     * Gather some framed messages on to the channel. If the write is short,
+     * whatever is left is copied in to one buffer, and written when the
+     * channel is next writable.
+     *
+     * @param srcs the buffers returned by {@link #frames}.
+     */
+    private void write(ByteBuffer[] srcs) {
+        SocketChannel sc = (SocketChannel) sk.channel();
+        if (sc.isOpen()) {
+            try {
+                long len = sc.write(srcs);
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("write(" + len + " bytes from " + (srcs.length / 2) + " messages)");
+                }
+            } catch (IOException e) {
+                LOG.warn("Can't write to TCPConnection on port " + localPort + ": " + e);
+                closeComplete();
+                return;
+            }
+            ByteBuffer rest = remainder(srcs);
+            if (rest != null) {
+                commonEndWrite(rest);
+            }
+        }
+    }
+
+    /**
+     * Copy whatever has not been written from some buffers in to one buffer.
+     *
+     * @param srcs the buffers which were written.
+     * @return a flipped buffer from the pool, or {@literal null} if everything
+     * was written.
+     */
+    static ByteBuffer remainder(ByteBuffer[] srcs) {
+        int remaining = 0;
+        for (ByteBuffer src : srcs) {
+            remaining += src.remaining();
+        }
+        if (remaining == 0) {
+            return null;
+        }
+        ByteBuffer rest = BufferPool.acquire(remaining);
+        for (ByteBuffer src : srcs) {
+            rest.put(src);
+        }
+        rest.flip();
+        return rest;
     }
 
     @Override
@@ -176,10 +370,10 @@ public class TCPConnection extends Connection {
         sk.attach(this);
         SocketChannel sch = (SocketChannel) sk.channel();
         if (sch.isConnected()) {
-            sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            readyForIO();
             setState(State.OPENED);
         } else if (sch.isConnectionPending()) {
-            sk.interestOps(SelectionKey.OP_CONNECT);
+            setInterestOps(SelectionKey.OP_CONNECT);
             setState(State.OPENING);
         }
     }
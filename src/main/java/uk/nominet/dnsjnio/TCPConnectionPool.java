@@ -0,0 +1,211 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of persistent TCP connections to one upstream server, for use instead
+ * of opening a new connection for every TCP query. Each connection pipelines
+ * several queries at once, and matches the responses to them by header ID in
+ * whatever order they come back (see RFC 7766). Spreading the queries over a
+ * few connections means one slow response only holds up the queries on its
+ * own connection, and lets the connections be served by different event
+ * loops. Once nothing is in flight, a connection is kept open for the idle
+ * timeout set on {@link TCPConnection#setIdleTimeout(long)}, so that the next
+ * burst of queries doesn't pay for another handshake.
+ * <p>
+ * The most connections kept open to each upstream is read from the
+ * {@value #SIZE_PROPERTY} system property (default 4), and the most queries in
+ * flight on each connection from {@value #MAX_IN_FLIGHT_PROPERTY} (default
+ * 64). A connection is retired once it has been used for a number of queries,
+ * or is a certain age, and is closed when its last query has finished. The
+ * number of queries is read from {@value #MAX_USES_PROPERTY} (default 1000),
+ * and the time from {@value #MAX_AGE_PROPERTY} (default 60000
+ * milliseconds).</p>
+ *
+ * @see NonblockingResolver#setUseTCPConnectionPool(boolean)
+ */
+public class TCPConnectionPool {
+
+    /**
+     * System property used to set the most connections kept open to each
+     * upstream.
+     */
+    public static final String SIZE_PROPERTY = "dnsjnio.tcpPoolSize";
+    /**
+     * System property used to set the most queries in flight on each
+     * connection.
+     */
+    public static final String MAX_IN_FLIGHT_PROPERTY = "dnsjnio.tcpPoolMaxInFlight";
+    /**
+     * System property used to set the number of queries each connection is
+     * used for.
+     */
+    public static final String MAX_USES_PROPERTY = "dnsjnio.tcpPoolMaxUses";
+    /**
+     * System property used to set how long each connection is used for, in
+     * milliseconds.
+     */
+    public static final String MAX_AGE_PROPERTY = "dnsjnio.tcpPoolMaxAgeMillis";
+    private static final int size = Math.max(1, Integer.getInteger(SIZE_PROPERTY, 4));
+    private static final int maxInFlight = Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 64));
+    private static final int maxUses = Math.max(1, Integer.getInteger(MAX_USES_PROPERTY, 1000));
+    private static final long maxAge = Math.max(1, Long.getLong(MAX_AGE_PROPERTY, 60000));
+    private static final ConcurrentMap<Map.Entry<InetSocketAddress, InetAddress>, TCPConnectionPool> pools = new ConcurrentHashMap<>();
+    private final InetSocketAddress remoteAddress;
+    private final InetAddress localAddress;
+    private final int poolSize;
+    private final int connectionMaxInFlight;
+    private final int connectionMaxUses;
+    private final long connectionMaxAge;
+    // The connections taking new queries
+    private final List<PooledTCPConnection> connections = new ArrayList<>();
+    // Retired connections which still have queries in flight
+    private final List<PooledTCPConnection> retired = new ArrayList<>();
+
+    TCPConnectionPool(InetSocketAddress remoteAddress, InetAddress localAddress, int poolSize,
+            int connectionMaxInFlight, int connectionMaxUses, long connectionMaxAge) {
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.poolSize = poolSize;
+        this.connectionMaxInFlight = connectionMaxInFlight;
+        this.connectionMaxUses = connectionMaxUses;
+        this.connectionMaxAge = connectionMaxAge;
+    }
+
+    /**
+     * Get the pool of connections to an upstream server.
+     *
+     * @param remoteAddress the upstream server.
+     * @param localAddress the local address to bind the connections to.
+     * @return the pool, which is shared by all resolvers using that upstream
+     * and local address.
+     */
+    public static TCPConnectionPool forUpstream(InetSocketAddress remoteAddress, InetAddress localAddress) {
+        Map.Entry<InetSocketAddress, InetAddress> key = new AbstractMap.SimpleImmutableEntry<>(remoteAddress, localAddress);
+        TCPConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new TCPConnectionPool(remoteAddress, localAddress, size, maxInFlight, maxUses, maxAge);
+            TCPConnectionPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Send a TCP query down one of the pooled connections. The response (or
+     * timeout) is returned to the listener or response queue set on the
+     * QueryData.
+     *
+     * @param qData the query, with its id, end time, and listener or response
+     * queue set.
+     * @return {@literal false} if the pool is full, and every connection either
+     * has as many queries in flight as it may, or already has one with the
+     * same header ID. The caller should use a connection of its own instead.
+     */
+    public boolean sendQuery(QueryData qData) {
+        PooledTCPConnection connection = reserve(qData);
+        if (connection == null) {
+            return false;
+        }
+        connection.send(qData);
+        return true;
+    }
+
+    /**
+     * Find a connection which can take this query, opening a new one if need
+     * be, and reserve the query's header ID on it. A connection with nothing
+     * in flight is used first, then a new connection if the pool isn't full,
+     * and only then one which is already waiting on other responses.
+     */
+    private synchronized PooledTCPConnection reserve(QueryData qData) {
+        long now = System.currentTimeMillis();
+        // Forget retired connections once they have closed
+        for (Iterator<PooledTCPConnection> it = retired.iterator(); it.hasNext();) {
+            if (it.next().isClosed()) {
+                it.remove();
+            }
+        }
+        PooledTCPConnection idle = null;
+        for (Iterator<PooledTCPConnection> it = connections.iterator(); it.hasNext();) {
+            PooledTCPConnection connection = it.next();
+            if (connection.retireIfExpired(now)) {
+                it.remove();
+                retired.add(connection);
+            } else if ((idle == null) && (connection.getInFlightCount() == 0)) {
+                idle = connection;
+            }
+        }
+        if ((idle != null) && idle.reserve(qData)) {
+            return idle;
+        }
+        if (connections.size() < poolSize) {
+            PooledTCPConnection connection = new PooledTCPConnection(remoteAddress, localAddress,
+                    connectionMaxInFlight, connectionMaxUses, now + connectionMaxAge);
+            connections.add(connection);
+            connection.reserve(qData);
+            return connection;
+        }
+        // All busy - share the query with the one with least in flight
+        PooledTCPConnection least = null;
+        int leastInFlight = Integer.MAX_VALUE;
+        for (PooledTCPConnection connection : connections) {
+            int inFlight = connection.getInFlightCount();
+            if (inFlight < leastInFlight) {
+                least = connection;
+                leastInFlight = inFlight;
+            }
+        }
+        if ((least != null) && least.reserve(qData)) {
+            return least;
+        }
+        // Its header ID may clash with one in flight there - try the rest
+        for (PooledTCPConnection connection : connections) {
+            if ((connection != least) && connection.reserve(qData)) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of connections in the pool which have not yet closed.
+     *
+     * @return the number of connections, including retired ones with queries
+     * still in flight.
+     */
+    synchronized int getConnectionCount() {
+        int count = connections.size();
+        for (PooledTCPConnection connection : retired) {
+            if (!connection.isClosed()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
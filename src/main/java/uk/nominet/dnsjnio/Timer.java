@@ -15,72 +15,129 @@ limitations under the License.
  */
 package uk.nominet.dnsjnio;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.log4j.Logger;
 
 /**
  * This class handles the timeouts for the Transaction objects. A new thread is
- * started to handle all the timeouts for all the Transaction objects. A
- * separate list is kept for single port transactions, and normal transactions.
+ * started to handle all the timeouts for all the Transaction objects. The
+ * timeouts are held in a {@link TimingWheel}, so adding and cancelling a
+ * timeout is O(1), and each tick only looks at the timeouts which fall due on
+ * it. The tick length (and so the timeout precision) is read from the
+ * {@value #TICK_PROPERTY} system property, and defaults to 10ms. Normal
+ * transactions are indexed by listener. The handle for a single port
+ * transaction's timeout is kept on its QueryData, and cancelled directly.
+ * <p>
+ * Alternatively, the timeouts can be driven by the event loops themselves (see
+ * {@link #setUseEventLoop(boolean)}). Each transaction's timeouts are then held
+ * by the {@link DnsEventLoop} its connections are pinned to, the loop selects
+ * with the next tick as its timeout, and the callbacks are made on the same
+ * thread as the I/O for that transaction. No DnsTimer thread is needed.</p>
  */
 public class Timer {
 
-    // There has to be a better way than this!
-    private final static Map timeouts = Collections.synchronizedMap(new HashMap());
-    private final static Map singlePortTimeouts = Collections.synchronizedMap(new HashMap());
+    /**
+     * System property used to set the timer tick length, in milliseconds.
+     */
+    public static final String TICK_PROPERTY = "dnsjnio.timerTickMillis";
+    /**
+     * System property used to drive the timeouts from the event loops.
+     */
+    public static final String EVENT_LOOP_PROPERTY = "dnsjnio.eventLoopTimeouts";
+    private static final Logger LOG = Logger.getLogger(Timer.class);
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    static final int WHEEL_SIZE = 1024;
+    private static final long tickMillis = Math.max(1, Long.getLong(TICK_PROPERTY, DEFAULT_TICK_MILLIS));
+    private final static TimingWheel wheel = new TimingWheel(tickMillis, WHEEL_SIZE);
+    private static volatile boolean useEventLoop = Boolean.getBoolean(EVENT_LOOP_PROPERTY);
+    private final static ConcurrentMap<TimerListener, TimingWheel.Timeout> timeouts = new ConcurrentHashMap<>();
     private static boolean threadStarted = false;
     private final static Thread timerThread = new Thread("DnsTimer") {
         @Override
         public void run() {
             while (true) {
                 try {
-                    sleep(100); // Poll 10 times a second
+                    wheel.awaitExpiry();
                 } catch (InterruptedException e) {
                     return;
                 }
-                long currentTime = System.currentTimeMillis();
-                List removeList = new LinkedList();
-                // Now go through and call any timeouts
-                synchronized (timeouts) {
-                    Set keys = timeouts.keySet();
-                    for (Iterator it = keys.iterator(); it.hasNext();) {
-                        Transaction t = (Transaction) (it.next());
-                        long endTime = ((Long) (timeouts.get(t))).longValue();
-                        if (endTime <= currentTime) {
-                            removeList.add(t);
-                        }
-                    }
-                    for (Iterator it = removeList.iterator(); it.hasNext();) {
-                        TimerListener t = (TimerListener) it.next();
-                        t.timedOut(null);
-                        timeouts.remove(t);
-                    }
-                }
-                removeList.clear();
-                synchronized (singlePortTimeouts) {
-                    Set keys = singlePortTimeouts.keySet();
-                    for (Iterator it = keys.iterator(); it.hasNext();) {
-                        ListenerAndData l = (ListenerAndData) (it.next());
-                        long endTime = ((Long) (singlePortTimeouts.get(l))).longValue();
-                        if (endTime <= currentTime) {
-                            removeList.add(l);
-                        }
-                    }
-                    for (Iterator it = removeList.iterator(); it.hasNext();) {
-                        ListenerAndData l = (ListenerAndData) it.next();
-                        l.getListener().timedOut(l.getqData());
-                        singlePortTimeouts.remove(l);
-                    }
-                }
+                fireTimeouts(wheel.expire(System.currentTimeMillis()));
             }
         }
     };
 
+    /**
+     * Call back the listeners for some expired timeouts. The wheel they came
+     * from must not be locked while we do. A transaction's callback is handed
+     * to the event loop that its connections are pinned to, so a mass timeout
+     * (e.g. an upstream outage) neither holds up the caller nor races with the
+     * I/O for that transaction. Other listeners are called back directly.
+     *
+     * @param expired the timeouts returned by {@link TimingWheel#expire(long)}.
+     */
+    static void fireTimeouts(List<TimingWheel.Timeout> expired) {
+        for (final TimingWheel.Timeout timeout : expired) {
+            if (timeout.getqData() == null) {
+                timeouts.remove(timeout.getListener(), timeout);
+            }
+            DnsEventLoop loop = null;
+            if (timeout.getListener() instanceof AbstractTransaction) {
+                loop = ((AbstractTransaction) timeout.getListener()).getEventLoop();
+            }
+            if ((loop != null) && loop.isRunning() && !loop.inEventLoop()) {
+                loop.invoke(new Runnable() {
+                    @Override
+                    public void run() {
+                        fire(timeout);
+                    }
+                });
+            } else {
+                fire(timeout);
+            }
+        }
+    }
+
+    private static void fire(TimingWheel.Timeout timeout) {
+        try {
+            timeout.fire();
+        } catch (Throwable t) {
+            LOG.error("Exception caught firing timeout\r\n", t);
+        }
+    }
+
+    /**
+     * Get the timing wheel which should hold the timeouts for a listener.
+     */
+    private static TimingWheel wheelFor(TimerListener t) {
+        if (useEventLoop && (t instanceof AbstractTransaction)) {
+            return ((AbstractTransaction) t).getEventLoop().getTimeouts();
+        }
+        checkTimerStarted();
+        return wheel;
+    }
+
+    /**
+     * Drive new timeouts from the event loop that each transaction runs on,
+     * rather than from the DnsTimer thread. The default is read from the
+     * {@value #EVENT_LOOP_PROPERTY} system property. Timeouts which have
+     * already been added are not moved.
+     *
+     * @param use {@literal true} to use the event loops.
+     */
+    public static void setUseEventLoop(boolean use) {
+        useEventLoop = use;
+    }
+
+    public static boolean isUseEventLoop() {
+        return useEventLoop;
+    }
+
+    public static long getTickMillis() {
+        return tickMillis;
+    }
+
     /**
      * Add a timeout callback for the specified Transaction.
      *
@@ -89,12 +146,10 @@ public class Timer {
      * @param qData
      */
     public final static void addTimeout(long timeout, TimerListener t, QueryData qData) {
-        ListenerAndData l = new ListenerAndData();
-        l.setListener(t);
-        l.setqData(qData);
-        checkTimerStarted();
-        synchronized (singlePortTimeouts) {
-            singlePortTimeouts.put(l, new Long(timeout));
+        TimingWheel.Timeout old = qData.getTimeout();
+        qData.setTimeout(wheelFor(t).schedule(timeout, t, qData));
+        if (old != null) {
+            old.cancel();
         }
     }
 
@@ -107,9 +162,9 @@ public class Timer {
     }
 
     public final static void addTimeout(long timeout, TimerListener t) {
-        checkTimerStarted();
-        synchronized (timeouts) {
-            timeouts.put(t, new Long(timeout));
+        TimingWheel.Timeout old = timeouts.put(t, wheelFor(t).schedule(timeout, t, null));
+        if (old != null) {
+            old.cancel();
         }
     }
 
@@ -120,29 +175,16 @@ public class Timer {
      * @param qData
      */
     public final static void cancelTimeout(TimerListener t, QueryData qData) {
-        // Need to search through list to find entry for qData.getId().
-        ListenerAndData toRemove = null;
-        Set set = null;
-        synchronized (singlePortTimeouts) {
-            set = singlePortTimeouts.keySet();
-            for (Iterator it = set.iterator(); it.hasNext();) {
-                ListenerAndData x = (ListenerAndData) it.next();
-                if (x.getListener() == t) {
-                    if (x.getqData().getId().equals(qData.getId())) {
-                        if (x.getqData().getQuery().getHeader().getID() == (qData.getQuery().getHeader().getID())) {
-                            toRemove = x;
-                            break;
-                        }
-                    }
-                }
-            }
-            singlePortTimeouts.remove(toRemove);
+        TimingWheel.Timeout timeout = qData.getTimeout();
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
     public final static void cancelTimeout(TimerListener t) {
-        synchronized (timeouts) {
-            timeouts.remove(t);
+        TimingWheel.Timeout timeout = timeouts.remove(t);
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
@@ -150,11 +192,10 @@ public class Timer {
      * Cancel all timeout callbacks.
      */
     public final static void reset() {
-        synchronized (timeouts) {
-            timeouts.clear();
-        }
-        synchronized (singlePortTimeouts) {
-            singlePortTimeouts.clear();
+        wheel.clear();
+        for (DnsEventLoop loop : DnsController.getEventLoops()) {
+            loop.getTimeouts().clear();
         }
+        timeouts.clear();
     }
 }
@@ -0,0 +1,320 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Time is divided into ticks of a fixed length, and
+ * each timeout is hashed into the bucket for the tick on which it falls due.
+ * Scheduling and cancelling a timeout are O(1). Expiring the wheel only visits
+ * the buckets for the ticks which have passed, rather than every outstanding
+ * timeout. Timeouts which are more than one revolution of the wheel away simply
+ * stay in their bucket until their own tick comes round.
+ * <p>
+ * All methods are thread safe. The callbacks are not made by the wheel - the
+ * expired timeouts are returned by {@link #expire(long)} so that the caller
+ * can fire them once the wheel's lock has been released.</p>
+ */
+public class TimingWheel {
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime;
+    private final Runnable onEarlierExpiry;
+    // The last tick which has been expired
+    private long currentTick;
+    // No timeout is due before this tick. It may be a cancelled timeout's.
+    private long minTick = Long.MAX_VALUE;
+    private int size = 0;
+
+    /**
+     * Create a new wheel.
+     *
+     * @param tickMillis the length of one tick, in milliseconds. This is the
+     * precision of the timeouts.
+     * @param wheelSize the number of buckets. This is rounded up to a power of
+     * two.
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this(tickMillis, wheelSize, null);
+    }
+
+    /**
+     * Create a new wheel.
+     *
+     * @param tickMillis the length of one tick, in milliseconds.
+     * @param wheelSize the number of buckets.
+     * @param onEarlierExpiry called whenever a timeout is added which falls due
+     * before all the others, including when the wheel was empty.
+     */
+    public TimingWheel(long tickMillis, int wheelSize, Runnable onEarlierExpiry) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be at least 1");
+        }
+        int n = 1;
+        while (n < wheelSize) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.startTime = System.currentTimeMillis();
+        this.currentTick = 0;
+        this.onEarlierExpiry = onEarlierExpiry;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedule a timeout.
+     *
+     * @param deadline the absolute timeout time in milliseconds.
+     * @param listener the listener to be called back.
+     * @param qData the query, if the listener is handling more than one.
+     * @return a handle which can be used to cancel the timeout.
+     */
+    public synchronized Timeout schedule(long deadline, TimerListener listener, QueryData qData) {
+        long tick = (deadline - startTime + tickMillis - 1) / tickMillis;
+        if (tick <= currentTick) {
+            // Already due - fire on the next tick
+            tick = currentTick + 1;
+        }
+        Timeout timeout = new Timeout(this, listener, qData, deadline, tick);
+        int index = (int) (tick & mask);
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+        if (tick < minTick) {
+            minTick = tick;
+            // Wake anyone waiting for an expiry which is now later
+            notifyAll();
+            if (onEarlierExpiry != null) {
+                onEarlierExpiry.run();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Cancel a timeout. This does nothing if the timeout has already expired or
+     * been cancelled.
+     *
+     * @param timeout the timeout to cancel.
+     * @return {@literal true} if the timeout was removed from the wheel.
+     */
+    synchronized boolean cancel(Timeout timeout) {
+        if (timeout.state != Timeout.PENDING) {
+            return false;
+        }
+        timeout.state = Timeout.CANCELLED;
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        int index = (int) (timeout.tick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+        if (size == 0) {
+            minTick = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Remove all the timeouts which are due at the given time.
+     *
+     * @param now the current time in milliseconds.
+     * @return the expired timeouts, which the caller should now fire.
+     */
+    public synchronized List<Timeout> expire(long now) {
+        List<Timeout> expired = new ArrayList<>();
+        long nowTick = (now - startTime) / tickMillis;
+        if (nowTick <= currentTick) {
+            return expired;
+        }
+        // Each bucket only needs visiting once, however far behind we are
+        long firstTick = Math.max(currentTick + 1, nowTick - mask);
+        for (long tick = firstTick; tick <= nowTick && size > 0; tick++) {
+            Timeout timeout = buckets[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.tick <= nowTick) {
+                    unlink(timeout);
+                    timeout.state = Timeout.EXPIRED;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        currentTick = nowTick;
+        if (minTick <= nowTick) {
+            minTick = findMinTick();
+        }
+        return expired;
+    }
+
+    /**
+     * Find the earliest tick on which a timeout falls due. The buckets are
+     * visited in tick order, so the search stops at the first timeout which is
+     * due on this revolution of the wheel.
+     */
+    private long findMinTick() {
+        long min = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length && size > 0; tick++) {
+            for (Timeout timeout = buckets[(int) (tick & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.tick == tick) {
+                    return tick;
+                }
+                min = Math.min(min, timeout.tick);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Get the time at which the earliest timeout falls due. This may be early,
+     * if that timeout has since been cancelled, but is never late.
+     *
+     * @return the absolute time in milliseconds, or {@link Long#MAX_VALUE} if
+     * the wheel is empty.
+     */
+    public synchronized long nextExpiryTime() {
+        if (minTick == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return startTime + (minTick * tickMillis);
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Block until the earliest timeout falls due.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void awaitExpiry() throws InterruptedException {
+        while (true) {
+            if (size == 0) {
+                wait();
+                continue;
+            }
+            long wait = nextExpiryTime() - System.currentTimeMillis();
+            if (wait <= 0) {
+                return;
+            }
+            wait(wait);
+        }
+    }
+
+    /**
+     * Cancel all timeouts.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            Timeout timeout = buckets[i];
+            while (timeout != null) {
+                timeout.state = Timeout.CANCELLED;
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                timeout = next;
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+        minTick = Long.MAX_VALUE;
+    }
+
+    /**
+     * Handle for a scheduled timeout.
+     */
+    public static class Timeout {
+
+        static final int PENDING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+        private final TimingWheel wheel;
+        private final TimerListener listener;
+        private final QueryData qData;
+        private final long deadline;
+        private final long tick;
+        private int state = PENDING;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(TimingWheel wheel, TimerListener listener, QueryData qData, long deadline, long tick) {
+            this.wheel = wheel;
+            this.listener = listener;
+            this.qData = qData;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+
+        public TimerListener getListener() {
+            return listener;
+        }
+
+        public QueryData getqData() {
+            return qData;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancel this timeout.
+         *
+         * @return {@literal true} if the timeout had not yet fired or been
+         * cancelled.
+         */
+        public boolean cancel() {
+            return wheel.cancel(this);
+        }
+
+        /**
+         * Call back the listener.
+         */
+        public void fire() {
+            listener.timedOut(qData);
+        }
+    }
+}
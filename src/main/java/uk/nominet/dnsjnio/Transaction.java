@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import org.apache.log4j.Logger;
 import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.ResolverListener;
 import org.xbill.DNS.TSIG;
@@ -53,6 +54,7 @@ public class Transaction extends AbstractTransaction {
     private ResponseQueue responseQueue;
     private ResolverListener listener = null;
     protected int udpSize;
+    private boolean useTCPConnectionPool = false;
     private boolean answered = false;
     private final Object lock = new Object();
 
@@ -119,9 +121,9 @@ public class Transaction extends AbstractTransaction {
      */
     protected void startConnect() {
         if (tcp) {
-            connection = new TCPConnection(this);
+            connection = new TCPConnection(this, Connection.BUFFER_SIZE, eventLoop);
         } else {
-            connection = new UDPConnection(this, udpSize);
+            connection = new UDPConnection(this, udpSize, eventLoop);
         }
         connection.connect(remoteAddr, localAddr);
     }
@@ -149,51 +151,86 @@ public class Transaction extends AbstractTransaction {
     }
 
     /**
-     * A packet is available. Decode it and act accordingly. If the packet is
+     * A packet is available. Route it using its header. If the packet is
      * truncated over UDP, and ignoreTruncation is false, then a tcp query is
-     * run to return the whole response.
+     * run to return the whole response. The rest of the packet is decoded by
+     * whoever collects the response.
      *
      * @param data
+     * @param header
      * @param ignoreMe
      */
     @Override
-    public void dataAvailable(byte[] data, Connection ignoreMe) {
-        // Now get the data, and send it back to the listener.
-        try {
-            disconnect(ignoreMe);
-            Message message = NonblockingResolver.parseMessage(data);
-
-            if (message != null && LOG.isTraceEnabled()) {
-                LOG.trace("dataAvailable(" + data.length + " bytes)");
-                LOG.trace(message);
-            }
+    public void dataAvailable(byte[] data, Header header, Connection ignoreMe) {
+        // Now send the data back to the listener.
+        disconnect(ignoreMe);
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("dataAvailable(" + data.length + " bytes)");
+            LOG.trace(header);
+        }
 
-            NonblockingResolver.verifyTSIG(query, message, data, tsig);
-            // Now check that we got the whole message, if we're asked to do so
-            if (!tcp && !ignoreTruncation
-                    && message.getHeader().getFlag(Flags.TC)) {
-                // Redo the query, but use tcp this time.
-                tcp = true;
-                // Now start again with a TCP connection
-                startConnect();
+        // Now check that we got the whole message, if we're asked to do so
+        if (!tcp && !ignoreTruncation
+                && header.getFlag(Flags.TC)) {
+            if (useTCPConnectionPool && sendPooledTCP()) {
                 return;
             }
-            if (query.getHeader().getID() != message.getHeader().getID()) {
-//                System.out.println("Query wrong id! Expected " + query.getHeader().getID() + " but got " + message.getHeader().getID());
-                return;
+            // Redo the query, but use tcp this time.
+            tcp = true;
+            // Now start again with a TCP connection
+            startConnect();
+            return;
+        }
+        if (query.getHeader().getID() != header.getID()) {
+//                System.out.println("Query wrong id! Expected " + query.getHeader().getID() + " but got " + header.getID());
+            return;
+        }
+        returnResponse(data);
+    }
+
+    /**
+     * Hand the query over to a pooled TCP connection, which answers the caller
+     * from now on.
+     *
+     * @return {@literal false} if the pool couldn't take the query.
+     */
+    private boolean sendPooledTCP() {
+        synchronized (lock) {
+            if (answered) {
+                return true;
             }
-            returnResponse(message);
-        } catch (IOException e) {
-            returnException(e, null);
+            answered = true;
+        }
+        cancelTimer();
+        QueryData qData = new QueryData();
+        qData.setTcp(true);
+        qData.setIgnoreTruncation(ignoreTruncation);
+        qData.setTsig(tsig);
+        qData.setQuery(query);
+        qData.setId(id);
+        qData.setEndTime(endTime);
+        if (listener == null) {
+            qData.setResponseQueue(responseQueue);
+        } else {
+            qData.setListener(listener);
+        }
+        if (TCPConnectionPool.forUpstream(remoteAddr, localAddr.getAddress()).sendQuery(qData)) {
+            return true;
         }
+        synchronized (lock) {
+            answered = false;
+        }
+        startTimer();
+        return false;
     }
 
     /**
      * Return the response to the listener
      *
-     * @param message the response
+     * @param data the response wire format
      */
-    private void returnResponse(Message message) {
+    private void returnResponse(byte[] data) {
         boolean needToRespond = false;
         synchronized (lock) {
             if (!answered) {
@@ -204,7 +241,7 @@ public class Transaction extends AbstractTransaction {
         if (needToRespond) {
             // Stop the timer!
             cancelTimer();
-            returnResponse(listener, responseQueue, message, id);
+            returnResponse(listener, responseQueue, data, query, tsig, id);
         }
     }
 
@@ -230,6 +267,20 @@ public class Transaction extends AbstractTransaction {
         }
     }
 
+    /**
+     * Called by the Connection when it closes. If that was because it could
+     * not be opened, the caller hears straight away rather than at the timeout.
+     *
+     * @param closed the connection.
+     */
+    @Override
+    public void closed(Connection closed) {
+        IOException e = closed.getConnectException();
+        if (e != null) {
+            returnException(e, null);
+        }
+    }
+
     /**
      * Cancel the timeout callback.
      */
@@ -241,4 +292,15 @@ public class Transaction extends AbstractTransaction {
     public void setUdpSize(int udpSize) {
         this.udpSize = udpSize;
     }
+
+    /**
+     * Run the query again over a pooled TCP connection if the UDP response is
+     * truncated, rather than opening a connection of its own.
+     *
+     * @param useTCPConnectionPool {@literal true} to use the
+     * {@link TCPConnectionPool}.
+     */
+    public void setUseTCPConnectionPool(boolean useTCPConnectionPool) {
+        this.useTCPConnectionPool = useTCPConnectionPool;
+    }
 }
@@ -22,11 +22,16 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import org.apache.log4j.Logger;
-import org.xbill.DNS.Message;
-import static uk.nominet.dnsjnio.NonblockingResolver.getNewInetSocketAddressWithRandomPort;
 
 /**
  * This class implements the UDP specific methods for the Connection superclass.
+ * Each read ready selection reads up to a budget of datagrams, which is read
+ * from the {@value #READ_BUDGET_PROPERTY} system property, and defaults to 16.
+ * <p>
+ * If the connection is opened with a local port of 0, the port is taken from
+ * the {@link PortAllocator}, and given back when the connection closes. If no
+ * port can be bound, the listener is told straight away, and
+ * {@link #getConnectException()} says why.</p>
  *
  * @author Alex Dalitz <alex@caerkettontech.com>
  * @author John Yeary <jyeary@bluelotussoftware.com>
@@ -34,21 +39,45 @@ import static uk.nominet.dnsjnio.NonblockingResolver.getNewInetSocketAddressWith
  */
 public class UDPConnection extends Connection {
 
+    /**
+     * System property used to set the most datagrams read for each read ready
+     * selection.
+     */
+    public static final String READ_BUDGET_PROPERTY = "dnsjnio.udpReadBudget";
     private static final Logger LOG = Logger.getLogger(UDPConnection.class);
+    private static final int DEFAULT_READ_BUDGET = 16;
+    private static volatile int readBudget = Math.max(1, Integer.getInteger(READ_BUDGET_PROPERTY, DEFAULT_READ_BUDGET));
+    // Ports which fail to bind belong to other processes - try this many
+    private static final int MAX_BIND_ATTEMPTS = 8;
+    // The port taken from the PortAllocator, or 0 if the port was given
+    private int allocatedPort = 0;
 
     public UDPConnection(ConnectionListener listener, int udpSize) {
         super(listener, udpSize);
     }
 
+    public UDPConnection(ConnectionListener listener, int udpSize, DnsEventLoop eventLoop) {
+        super(listener, udpSize, eventLoop);
+    }
+
     @Override
     protected void connect() {
+        DatagramChannel sch = null;
         try {
-            DatagramChannel sch = DatagramChannel.open();
+            sch = DatagramChannel.open();
             sch.configureBlocking(false);
 
-            // Pick up SocketException here, and keep rebinding to different random port
+            // A port of 0 means take a random one from the PortAllocator. If a
+            // port is already in use by another process, release it and take
+            // another, but give up after a few tries.
+            boolean allocate = localAddress.getPort() == 0;
+            int attempts = 0;
             boolean connectedOk = false;
             while (!connectedOk) {
+                if (allocate) {
+                    allocatedPort = PortAllocator.getInstance().allocate();
+                    localAddress = new InetSocketAddress(localAddress.getAddress(), allocatedPort);
+                }
                 try {
                     sch.socket().bind(localAddress);
                     connectedOk = true;
@@ -58,23 +87,64 @@ public class UDPConnection extends Connection {
                         LOG.trace("UDP connection bound to port " + localPort);
                     }
                 } catch (java.net.SocketException e) {
-                    LOG.trace("UDPConnection exception in connect for port" + localPort, e);
+                    LOG.trace("UDPConnection exception in connect for port " + localAddress.getPort(), e);
+                    if (e instanceof java.net.BindException) {
+                        // Something else holds the port - don't draw it again soon
+                        quarantinePort();
+                    } else {
+                        releasePort();
+                    }
+                    if (++attempts >= MAX_BIND_ATTEMPTS) {
+                        throw e;
+                    }
                     // Failure may be caused by picking a port number that was
                     // already in use. Pick another random port and try again.
                     // Note that the socket channel is now invalid, we need to
                     // close it and open a fresh one.
-                    localAddress = getNewInetSocketAddressWithRandomPort(localAddress.getAddress());
+                    allocate = true;
                     sch.close();
                     sch = DatagramChannel.open();
                     sch.configureBlocking(false);
                 }
             }
-            sk = sch.register(DnsController.getSelector(), 0);
+            sk = sch.register(eventLoop.getSelector(), 0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch (Exception e) {
-            LOG.error("Exception while connecting UDPConnection for port" + localPort, e);
-            close();
+            LOG.warn("Can't connect UDPConnection for port " + localAddress.getPort() + ": " + e);
+            if (sk != null) {
+                sk.cancel();
+            }
+            if (sch != null) {
+                try {
+                    sch.close();
+                } catch (IOException ce) {
+                    LOG.trace("Exception closing unconnected DatagramChannel", ce);
+                }
+            }
+            releasePort();
+            connectFailed(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /**
+     * Give back the port taken from the {@link PortAllocator}, if there is one.
+     */
+    private void releasePort() {
+        if (allocatedPort != 0) {
+            PortAllocator.getInstance().release(allocatedPort);
+            allocatedPort = 0;
+        }
+    }
+
+    /**
+     * Quarantine the port taken from the {@link PortAllocator}, if there is
+     * one, as it could not be bound.
+     */
+    private void quarantinePort() {
+        if (allocatedPort != 0) {
+            PortAllocator.getInstance().quarantine(allocatedPort);
+            allocatedPort = 0;
         }
     }
 
@@ -88,7 +158,7 @@ public class UDPConnection extends Connection {
         sk.attach(this);
         DatagramChannel sch = (DatagramChannel) sk.channel();
         if (sch.isConnected()) {
-            sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            readyForIO();
             setState(State.OPENED);
         }
     }
@@ -105,7 +175,10 @@ public class UDPConnection extends Connection {
     }
 
     /**
-     * Process a read ready selection
+     * Process a read ready selection. Datagrams are read until the channel has
+     * no more, or until the read budget (see {@link #setReadBudget(int)}) is
+     * used up, so a busy socket doesn't cost a trip round the selector for
+     * every response.
      */
     @Override
     public void doRead() {
@@ -114,35 +187,55 @@ public class UDPConnection extends Connection {
         // This is done by the DatagramChannel, which only receives datagrams
         // from the peer it is connected with.
         DatagramChannel sc = (DatagramChannel) sk.channel();
-        try {
-            readFromChannel(sc);
-        } catch (NullPointerException e) {
-            return;
-        }
+        for (int i = 0; i < readBudget; i++) {
+            int len;
+            try {
+                len = readFromChannel(sc);
+            } catch (NullPointerException e) {
+                return;
+            }
 
-        // It's possible that we received more than one DNS packet.
-        // Let's split them out, and send each to the client.
-        while (recvCount > 0) {
-            if (recvBytes != null) {
-                byte[] packet = new byte[recvCount];
-                System.arraycopy(recvBytes, 0, packet, 0, recvCount);
-                try {
-                    // Get the first packet in the buffer
-                    Message m = new Message(packet);
-                    if (m.numBytes() < recvCount) {
-                        packet = new byte[m.numBytes()];
-                        System.arraycopy(recvBytes, 0, packet, 0, m.numBytes());
-                    }
-                    sendToUser(packet); // try to send to user
-                    // Now clear the buffer
-                    clearRecvBytes(packet.length);
-                } catch (IOException e) {
-                    break;
-                }
+            ByteBuffer buf = inBuf;
+            if (buf == null || len <= 0) {
+                // Closed, or nothing more to read
+                return;
+            }
+            buf.flip();
+            // Each read returns exactly one datagram, which is one DNS message
+            byte[] packet = new byte[buf.remaining()];
+            buf.get(packet);
+            buf.clear();
+            sendToUser(packet); // try to send to user
+            if (inBuf != buf) {
+                // The listener closed us, and the buffer has gone back to the pool
+                return;
             }
         }
     }
 
+    /**
+     * Get the most datagrams read for each read ready selection.
+     *
+     * @return the read budget.
+     */
+    public static int getReadBudget() {
+        return readBudget;
+    }
+
+    /**
+     * Set the most datagrams read for each read ready selection. Once the
+     * budget is used up, the connection waits for the next selection, so that
+     * one busy socket can't starve the others on the same event loop.
+     *
+     * @param budget the read budget, which must be at least 1.
+     */
+    public static void setReadBudget(int budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Read budget must be at least 1, was " + budget);
+        }
+        readBudget = budget;
+    }
+
     /**
      * Write out a byte buffer
      *
@@ -183,7 +276,7 @@ public class UDPConnection extends Connection {
                 if (sc != null && sc.isOpen()) {
                     didClose = true;
                     if (getState() == State.OPENED) {
-                        sk.interestOps(0);
+                        setInterestOps(0);
                         setState(State.CLOSING);
                         try {
                             InetSocketAddress addr = (InetSocketAddress) sc.getLocalAddress();
@@ -203,6 +296,12 @@ public class UDPConnection extends Connection {
         return didClose;
     }
 
+    @Override
+    protected void closeComplete() {
+        super.closeComplete();
+        releasePort();
+    }
+
     @Override
     protected void closeChannel() throws IOException {
         DatagramChannel sc = (DatagramChannel) sk.channel();
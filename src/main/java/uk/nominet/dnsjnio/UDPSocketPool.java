@@ -0,0 +1,174 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of UDP sockets to one upstream server, for use instead of opening a
+ * new socket for every query. Each socket is bound to a random port, and
+ * carries several queries at once, as long as their header IDs are different.
+ * A socket is retired once it has been used for a number of queries, or is a
+ * certain age, and is closed when its last query has finished. A socket which
+ * reaches its age is retired by the timer, whether or not there is any more
+ * traffic to the upstream. That keeps most
+ * of the benefit of a random port per query, without opening, binding,
+ * registering and closing a socket each time.
+ * <p>
+ * The most sockets kept open to each upstream is read from the
+ * {@value #SIZE_PROPERTY} system property (default 16). The number of queries
+ * a socket is used for is read from {@value #MAX_USES_PROPERTY} (default 100),
+ * and the time it is used for from {@value #MAX_AGE_PROPERTY} (default 10000
+ * milliseconds).</p>
+ *
+ * @see NonblockingResolver#setUseUDPSocketPool(boolean)
+ */
+public class UDPSocketPool {
+
+    /**
+     * System property used to set the most sockets kept open to each upstream.
+     */
+    public static final String SIZE_PROPERTY = "dnsjnio.udpPoolSize";
+    /**
+     * System property used to set the number of queries each socket is used
+     * for.
+     */
+    public static final String MAX_USES_PROPERTY = "dnsjnio.udpPoolMaxUses";
+    /**
+     * System property used to set how long each socket is used for, in
+     * milliseconds.
+     */
+    public static final String MAX_AGE_PROPERTY = "dnsjnio.udpPoolMaxAgeMillis";
+    private static final int size = Math.max(1, Integer.getInteger(SIZE_PROPERTY, 16));
+    private static final int maxUses = Math.max(1, Integer.getInteger(MAX_USES_PROPERTY, 100));
+    private static final long maxAge = Math.max(1, Long.getLong(MAX_AGE_PROPERTY, 10000));
+    private static final ConcurrentMap<Map.Entry<InetSocketAddress, InetAddress>, UDPSocketPool> pools = new ConcurrentHashMap<>();
+    private final InetSocketAddress remoteAddress;
+    private final InetAddress localAddress;
+    private final int poolSize;
+    private final int socketMaxUses;
+    private final long socketMaxAge;
+    private final List<PooledUDPSocket> sockets = new ArrayList<>();
+    private int next = 0;
+
+    UDPSocketPool(InetSocketAddress remoteAddress, InetAddress localAddress, int poolSize, int socketMaxUses, long socketMaxAge) {
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.poolSize = poolSize;
+        this.socketMaxUses = socketMaxUses;
+        this.socketMaxAge = socketMaxAge;
+    }
+
+    /**
+     * Get the pool of sockets to an upstream server.
+     *
+     * @param remoteAddress the upstream server.
+     * @param localAddress the local address to bind the sockets to.
+     * @return the pool, which is shared by all resolvers using that upstream
+     * and local address.
+     */
+    public static UDPSocketPool forUpstream(InetSocketAddress remoteAddress, InetAddress localAddress) {
+        Map.Entry<InetSocketAddress, InetAddress> key = new AbstractMap.SimpleImmutableEntry<>(remoteAddress, localAddress);
+        UDPSocketPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new UDPSocketPool(remoteAddress, localAddress, size, maxUses, maxAge);
+            UDPSocketPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Send a UDP query down one of the pooled sockets. The response (or
+     * timeout) is returned to the listener or response queue set on the
+     * QueryData.
+     *
+     * @param qData the query, with its id, end time, and listener or response
+     * queue set.
+     * @return {@literal false} if every socket already has a query in flight
+     * with the same header ID, and the pool is full. The caller should use a
+     * socket of its own instead.
+     */
+    public boolean sendQuery(QueryData qData) {
+        PooledUDPSocket socket = reserve(qData);
+        if (socket == null) {
+            return false;
+        }
+        socket.send(qData);
+        return true;
+    }
+
+    /**
+     * Find a socket which can take this query, opening a new one if need be,
+     * and reserve the query's header ID on it.
+     */
+    private synchronized PooledUDPSocket reserve(QueryData qData) {
+        long now = System.currentTimeMillis();
+        // Drop retired sockets. They close themselves once they are idle.
+        for (Iterator<PooledUDPSocket> it = sockets.iterator(); it.hasNext();) {
+            PooledUDPSocket socket = it.next();
+            if (socket.retireIfExpired(now)) {
+                it.remove();
+            }
+        }
+        // Share the queries out round robin
+        for (int i = 0; i < sockets.size(); i++) {
+            PooledUDPSocket socket = sockets.get((next + i) % sockets.size());
+            if (socket.reserve(qData)) {
+                next = (next + i + 1) % sockets.size();
+                return socket;
+            }
+        }
+        if (sockets.size() < poolSize) {
+            PooledUDPSocket socket = new PooledUDPSocket(this, remoteAddress,
+                    new InetSocketAddress(localAddress, 0),
+                    socketMaxUses, now + socketMaxAge);
+            sockets.add(socket);
+            socket.reserve(qData);
+            return socket;
+        }
+        return null;
+    }
+
+    /**
+     * Take a retired socket out of the pool.
+     *
+     * @param socket the socket.
+     */
+    synchronized void remove(PooledUDPSocket socket) {
+        sockets.remove(socket);
+    }
+
+    /**
+     * Get the number of sockets in the pool which are still taking queries.
+     *
+     * @return the number of open sockets which have not been retired.
+     */
+    synchronized int getSocketCount() {
+        return sockets.size();
+    }
+}
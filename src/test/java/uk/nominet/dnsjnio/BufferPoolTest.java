@@ -0,0 +1,60 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        assertEquals(BufferPool.MIN_SIZE, BufferPool.acquire(1).capacity());
+        assertEquals(1024, BufferPool.acquire(513).capacity());
+        assertEquals(4096, BufferPool.acquire(4096).capacity());
+        assertEquals(BufferPool.MAX_SIZE, BufferPool.acquire(BufferPool.MAX_SIZE).capacity());
+        assertTrue(BufferPool.acquire(4096).isDirect());
+    }
+
+    @Test
+    public void testReuse() {
+        ByteBuffer buffer = BufferPool.acquire(2000);
+        buffer.put((byte) 1);
+        int pooled = BufferPool.getPooledCount(2000);
+        BufferPool.release(buffer);
+        assertEquals(pooled + 1, BufferPool.getPooledCount(2000));
+        ByteBuffer again = BufferPool.acquire(2048);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    public void testOversizedNotPooled() {
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.MAX_SIZE + 1);
+        assertFalse(buffer.isDirect());
+        BufferPool.release(buffer);
+        // Foreign buffers are ignored too
+        int pooled = BufferPool.getPooledCount(1000);
+        BufferPool.release(ByteBuffer.allocateDirect(1000));
+        assertEquals(pooled, BufferPool.getPooledCount(1000));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.CountDownLatch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.Type;
+
+public class DecodeStageTest {
+
+    private static Response newResponse(Object id) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        Response response = new Response();
+        response.setId(id);
+        response.setWire(query.toWire(), query, null);
+        return response;
+    }
+
+    @Test
+    public void testCompletesToQueue() throws Exception {
+        DecodeStage stage = new DecodeStage(1, 4);
+        try {
+            ResponseQueue queue = new ResponseQueue();
+            Response response = newResponse(1);
+            stage.complete(response, null, queue);
+            assertSame(response, queue.getItem());
+            assertFalse(response.isException());
+            assertEquals(Type.A, response.getMessage().getQuestion().getType());
+            // The worker records the latency after inserting the response
+            long giveUp = System.currentTimeMillis() + 1000;
+            while (stage.getCompletedCount() == 0 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, stage.getCompletedCount());
+            assertTrue(stage.getMaxLatencyNanos() >= stage.getMeanLatencyNanos());
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullQueueRunsOnCaller() throws Exception {
+        DecodeStage stage = new DecodeStage(1, 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Tie up the only worker
+            stage.complete(newResponse(1), new ResolverListener() {
+                @Override
+                public void receiveMessage(Object id, Message m) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                @Override
+                public void handleException(Object id, Exception e) {
+                }
+            }, null);
+            blocked.await();
+            ResponseQueue queue = new ResponseQueue();
+            // This one waits in the queue...
+            stage.complete(newResponse(2), null, queue);
+            assertEquals(1, stage.getQueueDepth());
+            // ...so this one is completed by the caller
+            stage.complete(newResponse(3), null, queue);
+            assertEquals(1, stage.getCallerRunsCount());
+            assertEquals(3, queue.getItem().getId());
+            release.countDown();
+            assertEquals(2, queue.getItem().getId());
+        } finally {
+            release.countDown();
+            stage.shutdown();
+        }
+    }
+}
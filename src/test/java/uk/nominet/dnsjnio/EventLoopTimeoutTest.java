@@ -0,0 +1,95 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.SocketTimeoutException;
+import junit.framework.TestCase;
+import org.xbill.DNS.*;
+
+/**
+ * Run queries with the timeouts driven by the event loops rather than the
+ * DnsTimer thread.
+ */
+public class EventLoopTimeoutTest extends TestCase {
+
+    final static String SERVER = "localhost";
+    final static int PORT = TestServer.PORT;
+    static TestServer server = TestServer.startServer();
+    private int idCount = 0;
+
+    @Override
+    public void setUp() {
+        Timer.reset();
+        Timer.setUseEventLoop(true);
+    }
+
+    @Override
+    public void tearDown() {
+        Timer.setUseEventLoop(false);
+    }
+
+    private Message getQuery(String nameString) throws TextParseException {
+        Name name = Name.fromString(nameString, Name.root);
+        Record question = Record.newRecord(name, Type.A, DClass.ANY);
+        return Message.newQuery(question);
+    }
+
+    private void doTestTimeout(NonblockingResolver resolver) throws Exception {
+        resolver.setPort(PORT);
+        resolver.setTimeout(1);
+        Integer id = idCount++;
+        ResponseQueue queue = new ResponseQueue();
+        long start = System.currentTimeMillis();
+        resolver.sendAsync(getQuery("timeout.example.net"), id, queue);
+        Response result = queue.getItem();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(result.getId() == id);
+        assertTrue("Response received for impossible query!", result.isException());
+        assertTrue("Exception " + result.getException() + " thrown instead of SocketTimeoutException!",
+                result.getException() instanceof SocketTimeoutException);
+        assertTrue("Timed out too early (" + elapsed + "ms)", elapsed >= 1000);
+    }
+
+    public void testTimeout() throws Exception {
+        doTestTimeout(new NonblockingResolver(SERVER));
+    }
+
+    public void testSinglePortTimeout() throws Exception {
+        NonblockingResolver resolver = new NonblockingResolver(SERVER);
+        resolver.setUseSingleUDPPort(true);
+        doTestTimeout(resolver);
+    }
+
+    public void testResponseCancelsTimeout() throws Exception {
+        NonblockingResolver resolver = new NonblockingResolver(SERVER);
+        resolver.setPort(PORT);
+        resolver.setTimeout(5);
+        ResponseQueue queue = new ResponseQueue();
+        int numRequests = 20;
+        for (int i = 0; i < numRequests; i++) {
+            resolver.sendAsync(getQuery("example" + i + ".net"), idCount++, queue);
+        }
+        for (int i = 0; i < numRequests; i++) {
+            Response result = queue.getItem();
+            assertFalse("Exception thrown " + result.getException(), result.isException());
+        }
+        // All of the timeouts should have been cancelled
+        for (DnsEventLoop loop : DnsController.getEventLoops()) {
+            assertTrue(loop.getTimeouts().isEmpty());
+        }
+    }
+}
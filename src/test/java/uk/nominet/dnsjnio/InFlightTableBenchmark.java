@@ -0,0 +1,142 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the synchronized HashMap which SinglePortTransactionController used
+ * to keep its queries in with an InFlightTable. Each thread claims a header ID,
+ * looks it up as a response would, then releases it, over its own range of
+ * IDs, so every thread contends for the same map or table. This is not run as
+ * part of the unit tests - run main() by hand.
+ */
+public class InFlightTableBenchmark {
+
+    final static int THREADS = 16;
+    final static int OPERATIONS = 2000000;
+
+    interface Slots {
+
+        boolean claim(int id, QueryData qData);
+
+        QueryData get(int id);
+
+        void release(int id, QueryData qData);
+    }
+
+    static class MapSlots implements Slots {
+
+        private final Map<Integer, QueryData> map = new HashMap<>();
+
+        @Override
+        public boolean claim(int id, QueryData qData) {
+            synchronized (map) {
+                if (map.containsKey(id)) {
+                    return false;
+                }
+                map.put(id, qData);
+                return true;
+            }
+        }
+
+        @Override
+        public QueryData get(int id) {
+            synchronized (map) {
+                return map.get(id);
+            }
+        }
+
+        @Override
+        public void release(int id, QueryData qData) {
+            synchronized (map) {
+                map.remove(id);
+            }
+        }
+    }
+
+    static class TableSlots implements Slots {
+
+        private final InFlightTable table = new InFlightTable();
+
+        @Override
+        public boolean claim(int id, QueryData qData) {
+            return table.claim(id, qData);
+        }
+
+        @Override
+        public QueryData get(int id) {
+            return table.get(id);
+        }
+
+        @Override
+        public void release(int id, QueryData qData) {
+            table.release(id, qData);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Warm up
+        run(new MapSlots());
+        run(new TableSlots());
+        System.out.println("threads\tHashMap ns/op\tInFlightTable ns/op");
+        for (int threads = 1; threads <= THREADS; threads *= 2) {
+            System.out.println(threads + "\t" + run(new MapSlots(), threads)
+                    + "\t\t" + run(new TableSlots(), threads));
+        }
+    }
+
+    private static long run(Slots slots) throws InterruptedException {
+        return run(slots, THREADS);
+    }
+
+    private static long run(final Slots slots, int threads) throws InterruptedException {
+        final int perThread = OPERATIONS / threads;
+        final int range = InFlightTable.SIZE / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int base = t * range;
+            new Thread() {
+                @Override
+                public void run() {
+                    QueryData qData = new QueryData();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        int id = base + (i % range);
+                        slots.claim(id, qData);
+                        if (slots.get(id) != qData) {
+                            throw new IllegalStateException("Lost slot " + id);
+                        }
+                        slots.release(id, qData);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (System.nanoTime() - begin) / (perThread * (long) threads);
+    }
+}
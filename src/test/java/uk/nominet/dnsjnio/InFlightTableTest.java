@@ -0,0 +1,130 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class InFlightTableTest {
+
+    @Test
+    public void testClaimAndRelease() throws Exception {
+        InFlightTable table = new InFlightTable();
+        QueryData qData = new QueryData();
+        assertTrue(table.isEmpty());
+        assertNull(table.get(0xffff));
+        assertTrue(table.claim(0xffff, qData));
+        assertSame(qData, table.get(0xffff));
+        assertEquals(1, table.size());
+        assertTrue(table.release(0xffff, qData));
+        assertNull(table.get(0xffff));
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testSlotIsOnlyClaimedOnce() throws Exception {
+        InFlightTable table = new InFlightTable();
+        QueryData first = new QueryData();
+        QueryData second = new QueryData();
+        assertTrue(table.claim(42, first));
+        assertFalse(table.claim(42, second));
+        // Only the query holding the slot can release it
+        assertFalse(table.release(42, second));
+        assertSame(first, table.get(42));
+        assertTrue(table.release(42, first));
+        assertFalse(table.release(42, first));
+        assertTrue(table.claim(42, second));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testClaimFreeFindsAnotherId() throws Exception {
+        InFlightTable table = new InFlightTable();
+        QueryData first = new QueryData();
+        QueryData second = new QueryData();
+        assertEquals(7, table.claimFree(7, first));
+        int id = table.claimFree(7, second);
+        assertTrue(id >= 0 && id < InFlightTable.SIZE);
+        assertTrue(id != 7);
+        assertSame(second, table.get(id));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testClaimFreeWhenFull() throws Exception {
+        InFlightTable table = new InFlightTable();
+        for (int i = 0; i < InFlightTable.SIZE; i++) {
+            assertTrue(table.claimFree(0, new QueryData()) >= 0);
+        }
+        assertEquals(InFlightTable.SIZE, table.size());
+        assertEquals(-1, table.claimFree(0, new QueryData()));
+        QueryData last = new QueryData();
+        table.release(1234, table.get(1234));
+        assertEquals(1234, table.claimFree(0, last));
+    }
+
+    @Test
+    public void testValuesInIdOrder() throws Exception {
+        InFlightTable table = new InFlightTable();
+        int[] ids = {65535, 0, 64, 63, 1000};
+        QueryData[] queries = new QueryData[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            queries[i] = new QueryData();
+            table.claim(ids[i], queries[i]);
+        }
+        table.release(1000, queries[4]);
+        List<QueryData> values = table.values();
+        assertEquals(4, values.size());
+        assertSame(queries[1], values.get(0));
+        assertSame(queries[3], values.get(1));
+        assertSame(queries[2], values.get(2));
+        assertSame(queries[0], values.get(3));
+    }
+
+    @Test
+    public void testConcurrentClaims() throws Exception {
+        final InFlightTable table = new InFlightTable();
+        final AtomicInteger claimed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int id = 0; id < InFlightTable.SIZE; id++) {
+                        if (table.claim(id, new QueryData())) {
+                            claimed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Every slot went to exactly one thread
+        assertEquals(InFlightTable.SIZE, claimed.get());
+        assertEquals(InFlightTable.SIZE, table.size());
+        assertEquals(InFlightTable.SIZE, table.values().size());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how the DnsEventLoop.invoke() submit path scales with the number of
+ * producer threads. This is not run as part of the unit tests - run main() by
+ * hand, e.g.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=uk.nominet.dnsjnio.InvokeBenchmark
+ * </pre>
+ */
+public class InvokeBenchmark {
+
+    final static int TASKS_PER_RUN = 2000000;
+    final static int[] PRODUCERS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws Exception {
+        DnsEventLoop loop = new DnsEventLoop("InvokeBenchmark");
+        // Warm up
+        run(loop, 4);
+        run(loop, 4);
+        System.out.println("producers\tms\ttasks/sec");
+        for (int producers : PRODUCERS) {
+            long time = run(loop, producers);
+            System.out.println(producers + "\t\t" + time + "\t"
+                    + (TASKS_PER_RUN * 1000L / Math.max(time, 1)));
+        }
+    }
+
+    private static long run(final DnsEventLoop loop, int producers) throws InterruptedException {
+        final int perProducer = TASKS_PER_RUN / producers;
+        final CountDownLatch done = new CountDownLatch(perProducer * producers);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread("producer-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < perProducer; j++) {
+                        loop.invoke(task);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Queues a backlog of queries behind a SinglePortTransactionController's TCP
+ * connection while it is still opening, then times how long the select
+ * thread takes to send them all once it has opened. The event loop is held up
+ * until the whole backlog is queued. This is not run as part of the unit tests
+ * - run main() by hand.
+ */
+public class PendingSendBenchmark {
+
+    final static int BACKLOG = 10000;
+
+    public static void main(String[] args) throws Exception {
+        // Somewhere to send the queries to. It reads them, but never answers.
+        final ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        final CountDownLatch received = new CountDownLatch(BACKLOG);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    while (true) {
+                        in.readFully(new byte[in.readUnsignedShort()]);
+                        received.countDown();
+                    }
+                } catch (IOException e) {
+                    // Finished
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        SinglePortTransactionController controller = new SinglePortTransactionController(
+                (InetSocketAddress) server.getLocalSocketAddress(),
+                new InetSocketAddress("127.0.0.1", 0));
+        final CountDownLatch queued = new CountDownLatch(1);
+        controller.getEventLoop().invoke(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queued.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Record question = Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN);
+        ResponseQueue responseQueue = new ResponseQueue();
+        // Far enough away that nothing times out during the run
+        long endTime = System.currentTimeMillis() + 3600000;
+        for (int i = 0; i < BACKLOG; i++) {
+            Message query = Message.newQuery(question);
+            query.getHeader().setID(i);
+            QueryData qData = new QueryData();
+            qData.setTcp(true);
+            qData.setQuery(query);
+            controller.sendQuery(qData, i, responseQueue, endTime);
+        }
+
+        long start = System.nanoTime();
+        queued.countDown();
+        received.await();
+        long time = (System.nanoTime() - start) / 1000;
+        System.out.println("backlog\tms\tsends/sec");
+        System.out.println(BACKLOG + "\t" + (time / 1000.0) + "\t" + (BACKLOG * 1000000L / Math.max(time, 1)));
+        server.close();
+        Timer.reset();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.xbill.DNS.Header;
+
+public class PortAllocatorTest {
+
+    @Test
+    public void testAllocatesEveryPortOnce() throws Exception {
+        PortAllocator allocator = new PortAllocator(2000, 2099);
+        BitSet seen = new BitSet();
+        for (int i = 0; i < 100; i++) {
+            int port = allocator.allocate();
+            assertTrue(port >= 2000 && port <= 2099);
+            assertFalse("Port " + port + " handed out twice", seen.get(port));
+            seen.set(port);
+        }
+        assertEquals(0, allocator.getFreeCount());
+    }
+
+    @Test
+    public void testExhaustionFailsFast() throws Exception {
+        PortAllocator allocator = new PortAllocator(3000, 3001);
+        int first = allocator.allocate();
+        allocator.allocate();
+        try {
+            allocator.allocate();
+            fail("Expected BindException");
+        } catch (BindException e) {
+            // expected
+        }
+        allocator.release(first);
+        assertEquals(first, allocator.allocate());
+    }
+
+    @Test
+    public void testReleaseTwiceIsIgnored() throws Exception {
+        PortAllocator allocator = new PortAllocator(4000, 4009);
+        int port = allocator.allocate();
+        allocator.release(port);
+        allocator.release(port);
+        allocator.release(4005);
+        assertEquals(10, allocator.getFreeCount());
+    }
+
+    @Test
+    public void testQuarantinedPortIsHeldBack() throws Exception {
+        PortAllocator allocator = new PortAllocator(5000, 5000, 200);
+        int port = allocator.allocate();
+        allocator.quarantine(port);
+        assertEquals(0, allocator.getFreeCount());
+        try {
+            allocator.allocate();
+            fail("Expected BindException");
+        } catch (BindException e) {
+            // expected
+        }
+        Thread.sleep(250);
+        assertEquals(port, allocator.allocate());
+    }
+
+    @Test
+    public void testUDPConnectionReleasesPort() throws Exception {
+        PortAllocator allocator = PortAllocator.getInstance();
+        final Object lock = new Object();
+        final boolean[] opened = {false};
+        int free = allocator.getFreeCount();
+        UDPConnection connection = new UDPConnection(new ConnectionListener() {
+            @Override
+            public void readyToSend(Connection connection) {
+                synchronized (lock) {
+                    opened[0] = true;
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void dataAvailable(byte[] data, Header header, Connection connection) {
+            }
+
+            @Override
+            public void closed(Connection connection) {
+            }
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+        }, 512);
+        connection.connect(new InetSocketAddress("127.0.0.1", 53),
+                new InetSocketAddress("127.0.0.1", 0));
+        synchronized (lock) {
+            long end = System.currentTimeMillis() + 5000;
+            while (!opened[0] && System.currentTimeMillis() < end) {
+                lock.wait(100);
+            }
+        }
+        assertTrue(opened[0]);
+        int port = connection.getLocalAddress().getPort();
+        assertTrue(port >= PortAllocator.FIRST_PORT && port <= PortAllocator.LAST_PORT);
+        assertEquals(free - 1, allocator.getFreeCount());
+        connection.disconnect();
+        long end = System.currentTimeMillis() + 5000;
+        while (allocator.getFreeCount() != free && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(free, allocator.getFreeCount());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Blasts responses at a UDP Connection, and reports the receive rate and how
+ * much CPU time the select thread spends receiving each response, reading one
+ * datagram per selection and then with the default read budget. This is not
+ * run as part of the
+ * unit tests - run main() by hand.
+ */
+public class ReceiveBenchmark {
+
+    final static int RESPONSES = 200000;
+    final static int BATCH = 100;
+    final static int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicLong loopThreadId = new AtomicLong(-1);
+        final CountDownLatch opened = new CountDownLatch(1);
+
+        DatagramChannel server = DatagramChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress serverAddress = (InetSocketAddress) server.getLocalAddress();
+
+        DnsEventLoop loop = new DnsEventLoop("ReceiveBenchmark");
+        UDPConnection connection = new UDPConnection(new ConnectionListener() {
+            @Override
+            public void readyToSend(Connection connection) {
+                loopThreadId.set(Thread.currentThread().getId());
+                opened.countDown();
+            }
+
+            @Override
+            public void closed(Connection connection) {
+            }
+
+            @Override
+            public void dataAvailable(byte[] data, Header header, Connection connection) {
+                received.incrementAndGet();
+            }
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+        }, 512, loop);
+        connection.connect(serverAddress, new InetSocketAddress("127.0.0.1", 0));
+        opened.await();
+        server.connect(new InetSocketAddress("127.0.0.1", connection.localPort));
+
+        Name name = Name.fromString("www.example.net.");
+        Message response = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        response.getHeader().setFlag(Flags.QR);
+        for (int i = 1; i <= 4; i++) {
+            response.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i})), Section.ANSWER);
+        }
+        Name zone = Name.fromString("example.net.");
+        response.addRecord(new NSRecord(zone, DClass.IN, 3600, Name.fromString("ns1.example.net.")), Section.AUTHORITY);
+        response.addRecord(new NSRecord(zone, DClass.IN, 3600, Name.fromString("ns2.example.net.")), Section.AUTHORITY);
+        byte[] wire = response.toWire();
+
+        // Compare one datagram per selection with the default read budget
+        int[] budgets = {1, UDPConnection.getReadBudget()};
+        for (int budget : budgets) {
+            UDPConnection.setReadBudget(budget);
+            System.out.println("read budget " + budget);
+            System.out.println("received\tresponses/s\tus cpu/response");
+            for (int run = 0; run < RUNS; run++) {
+                int before = received.get();
+                long cpuBefore = threads.getThreadCpuTime(loopThreadId.get());
+                long start = System.nanoTime();
+                for (int sent = 0; sent < RESPONSES; sent += BATCH) {
+                    int target = received.get() + BATCH;
+                    for (int i = 0; i < BATCH; i++) {
+                        server.write(ByteBuffer.wrap(wire));
+                    }
+                    // Don't overrun the socket buffer. Anything dropped is simply
+                    // not counted.
+                    long giveUp = System.currentTimeMillis() + 100;
+                    while (received.get() < target && System.currentTimeMillis() < giveUp) {
+                        Thread.yield();
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                long cpu = threads.getThreadCpuTime(loopThreadId.get()) - cpuBefore;
+                int count = received.get() - before;
+                System.out.println(count + "\t\t" + (count * 1000000000L / elapsed)
+                        + "\t\t" + (cpu / 1000.0 / Math.max(count, 1)));
+            }
+        }
+        connection.disconnect();
+        server.close();
+    }
+}
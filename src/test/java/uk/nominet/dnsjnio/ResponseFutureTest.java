@@ -0,0 +1,180 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Send queries with NonblockingResolver.sendAsync(Message) to a server which
+ * echoes each query back as its response.
+ */
+public class ResponseFutureTest {
+
+    private DatagramChannel server;
+    private Thread echo;
+    private InetAddress localhost;
+
+    @Before
+    public void setUp() throws Exception {
+        localhost = InetAddress.getByName("127.0.0.1");
+        server = DatagramChannel.open();
+        server.socket().bind(new InetSocketAddress(localhost, 0));
+        echo = new Thread("ResponseFutureTest echo") {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(512);
+                try {
+                    while (true) {
+                        buf.clear();
+                        SocketAddress from = server.receive(buf);
+                        buf.flip();
+                        // Turn the query in to a response
+                        buf.put(2, (byte) (buf.get(2) | 0x80));
+                        server.send(buf, from);
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private Message newQuery(String name) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+    }
+
+    @Test
+    public void testFuturesCompleteWithResponses() throws Exception {
+        NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+        resolver.setRemoteAddress((InetSocketAddress) server.getLocalAddress());
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[50];
+        for (int i = 0; i < futures.length; i++) {
+            Message query = newQuery("host" + i + ".example.net.");
+            futures[i] = resolver.sendAsync(query);
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < futures.length; i++) {
+            Message response = (Message) futures[i].get();
+            assertTrue(response.getHeader().getFlag(Flags.QR));
+            assertEquals(Name.fromString("host" + i + ".example.net."), response.getQuestion().getName());
+        }
+        // The synchronous call still works alongside
+        assertTrue(resolver.send(newQuery("example.net.")).getHeader().getFlag(Flags.QR));
+    }
+
+    @Test
+    public void testTimeoutCompletesExceptionally() throws Exception {
+        // Nothing answers these
+        DatagramChannel silent = DatagramChannel.open();
+        silent.socket().bind(new InetSocketAddress(localhost, 0));
+        try {
+            NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+            resolver.setRemoteAddress((InetSocketAddress) silent.getLocalAddress());
+            resolver.setTimeout(0, 200);
+            try {
+                resolver.sendAsync(newQuery("example.net.")).get(10, TimeUnit.SECONDS);
+                fail("Expected a timeout");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            try {
+                resolver.send(newQuery("example.net."));
+                fail("Expected a timeout");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+        } finally {
+            silent.close();
+        }
+    }
+
+    private static final BiFunction<Message, Throwable, Boolean> ON_LOOP = new BiFunction<Message, Throwable, Boolean>() {
+        @Override
+        public Boolean apply(Message response, Throwable t) {
+            return DnsController.isSelectThread();
+        }
+    };
+
+    @Test
+    public void testStagesRunOffTheEventLoop() throws Exception {
+        NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+        resolver.setRemoteAddress((InetSocketAddress) server.getLocalAddress());
+        assertFalse(resolver.sendAsync(newQuery("example.net.")).handle(ON_LOOP).get(10, TimeUnit.SECONDS));
+
+        // Timeouts fire on the event loop, but the future is still completed
+        // off it
+        DatagramChannel silent = DatagramChannel.open();
+        silent.socket().bind(new InetSocketAddress(localhost, 0));
+        try {
+            resolver.setRemoteAddress((InetSocketAddress) silent.getLocalAddress());
+            resolver.setTimeout(0, 200);
+            CompletableFuture<Message> future = resolver.sendAsync(newQuery("example.net."));
+            assertFalse(future.handle(ON_LOOP).get(10, TimeUnit.SECONDS));
+            assertTrue(future.isCompletedExceptionally());
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testCompletedOnGivenExecutor() throws Exception {
+        NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+        resolver.setRemoteAddress((InetSocketAddress) server.getLocalAddress());
+        final AtomicInteger executed = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        };
+        Message response = resolver.sendAsync(newQuery("example.net."), executor).get(10, TimeUnit.SECONDS);
+        assertTrue(response.getHeader().getFlag(Flags.QR));
+        assertEquals(1, executed.get());
+    }
+}
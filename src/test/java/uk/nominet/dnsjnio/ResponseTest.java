@@ -0,0 +1,55 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.WireParseException;
+
+public class ResponseTest {
+
+    @Test
+    public void testDecodedWhenCollected() throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        Response response = new Response();
+        response.setWire(query.toWire(), query, null);
+        assertFalse(response.isException());
+        assertEquals(query.getHeader().getID(), response.getMessage().getHeader().getID());
+        assertEquals(query.getQuestion(), response.getMessage().getQuestion());
+    }
+
+    @Test
+    public void testUnparseableBecomesException() throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        byte[] wire = query.toWire();
+        // Claim a question which isn't there
+        wire[5] = 2;
+        Response response = new Response();
+        response.setWire(wire, query, null);
+        assertTrue(response.isException());
+        assertTrue(response.getException() instanceof WireParseException);
+        assertNull(response.getMessage());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Sends bursts of queries down a single UDP Connection from a client thread,
+ * and reports how many selector wakeups and interest ops changes the burst
+ * cost, and how long the select thread took to write it all out. This is not
+ * run as part of the unit tests - run main() by hand.
+ */
+public class SendBurstBenchmark {
+
+    final static int BURST = 10000;
+    final static int RUNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        // Somewhere to send the datagrams to. Nothing reads them.
+        DatagramChannel sink = DatagramChannel.open();
+        sink.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress sinkAddress = (InetSocketAddress) sink.getLocalAddress();
+
+        DnsEventLoop loop = new DnsEventLoop("SendBurstBenchmark");
+        final CountDownLatch opened = new CountDownLatch(1);
+        UDPConnection connection = new UDPConnection(new ConnectionListener() {
+            @Override
+            public void readyToSend(Connection connection) {
+                opened.countDown();
+            }
+
+            @Override
+            public void closed(Connection connection) {
+            }
+
+            @Override
+            public void dataAvailable(byte[] data, Header header, Connection connection) {
+            }
+
+            @Override
+            public int getPort() {
+                return 0;
+            }
+        }, 512, loop);
+        connection.connect(sinkAddress, new InetSocketAddress("127.0.0.1", 0));
+        opened.await();
+
+        Record question = Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN);
+        byte[] query = Message.newQuery(question).toWire();
+
+        System.out.println("burst\twakeups\tms\tsends/sec\tinterest ops changes");
+        for (int run = 0; run < RUNS; run++) {
+            long wakeupsBefore = loop.getWakeupCount();
+            long opsBefore = Connection.getInterestOpsChangeCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST; i++) {
+                connection.send(query);
+            }
+            // Invocations run in order, so once this has run the burst is out
+            final CountDownLatch drained = new CountDownLatch(1);
+            loop.invoke(new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            drained.await();
+            long time = (System.nanoTime() - start) / 1000;
+            System.out.println(BURST + "\t" + (loop.getWakeupCount() - wakeupsBefore)
+                    + "\t" + (time / 1000.0) + "\t" + (BURST * 1000000L / Math.max(time, 1))
+                    + "\t\t" + (Connection.getInterestOpsChangeCount() - opsBefore));
+        }
+        connection.disconnect();
+        sink.close();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Send UDP queries over several single port stripes to a server which echoes
+ * each query back as its response.
+ */
+public class StripedTransactionControllerTest {
+
+    private DatagramChannel server;
+    private Thread echo;
+    private InetAddress localhost;
+
+    @Before
+    public void setUp() throws Exception {
+        localhost = InetAddress.getByName("127.0.0.1");
+        server = DatagramChannel.open();
+        server.socket().bind(new InetSocketAddress(localhost, 0));
+        echo = new Thread("StripedTransactionControllerTest echo") {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(512);
+                try {
+                    while (true) {
+                        buf.clear();
+                        SocketAddress from = server.receive(buf);
+                        buf.flip();
+                        // Turn the query in to a response
+                        buf.put(2, (byte) (buf.get(2) | 0x80));
+                        server.send(buf, from);
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static QueryData newQuery(int headerId) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        query.getHeader().setID(headerId);
+        QueryData qData = new QueryData();
+        qData.setQuery(query);
+        return qData;
+    }
+
+    @Test
+    public void testSharedByAddress() throws Exception {
+        InetSocketAddress remote = (InetSocketAddress) server.getLocalAddress();
+        InetSocketAddress local = new InetSocketAddress(localhost, 0);
+        StripedTransactionController first = StripedTransactionController.acquire(remote, local, 2);
+        StripedTransactionController second = StripedTransactionController.acquire(remote, local, 2);
+        assertSame(first, second);
+        assertEquals(2, first.getReferenceCount());
+        StripedTransactionController threeStripes = StripedTransactionController.acquire(remote, local, 3);
+        assertNotSame(first, threeStripes);
+        threeStripes.release();
+        first.release();
+        second.release();
+        assertEquals(0, first.getReferenceCount());
+        // Released twice as often as acquired - ignored
+        second.release();
+        assertEquals(0, first.getReferenceCount());
+        // The last share has gone, so once its stripes have closed the next
+        // resolver gets a new one
+        waitUntilClosed(first);
+        StripedTransactionController third = StripedTransactionController.acquire(remote, local, 2);
+        assertNotSame(first, third);
+        third.release();
+    }
+
+    private static void waitUntilClosed(StripedTransactionController controller) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!controller.isClosed() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(controller.isClosed());
+    }
+
+    private static void assertAnswered(StripedTransactionController controller) throws Exception {
+        ResponseQueue queue = new ResponseQueue();
+        controller.sendQuery(newQuery(42), 1, queue, System.currentTimeMillis() + 5000);
+        Response response = queue.getItem();
+        assertFalse("Exception " + response.getException(), response.isException());
+    }
+
+    private static int freePort() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            return channel.socket().getLocalPort();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testReacquireWithFixedLocalPort() throws Exception {
+        InetSocketAddress remote = (InetSocketAddress) server.getLocalAddress();
+        InetSocketAddress local = new InetSocketAddress(localhost, freePort());
+        StripedTransactionController first = StripedTransactionController.acquire(remote, local, 1);
+        assertAnswered(first);
+        first.release();
+        // Taken again while it may still be closing
+        StripedTransactionController second = StripedTransactionController.acquire(remote, local, 1);
+        assertAnswered(second);
+        second.release();
+        // Taken again once it has closed - the port must have been freed
+        waitUntilClosed(second);
+        StripedTransactionController third = StripedTransactionController.acquire(remote, local, 1);
+        assertNotSame(second, third);
+        assertAnswered(third);
+        third.release();
+    }
+
+    @Test
+    public void testBindFailureFailsQueries() throws Exception {
+        // Holds the port without SO_REUSEADDR, so the stripe can't bind it
+        DatagramChannel blocker = DatagramChannel.open();
+        blocker.socket().bind(new InetSocketAddress(localhost, 0));
+        try {
+            StripedTransactionController controller = new StripedTransactionController(
+                    (InetSocketAddress) server.getLocalAddress(),
+                    (InetSocketAddress) blocker.getLocalAddress(), 1);
+            ResponseQueue queue = new ResponseQueue();
+            long start = System.currentTimeMillis();
+            controller.sendQuery(newQuery(42), 1, queue, start + 10000);
+            Response response = queue.getItem();
+            assertTrue(response.isException());
+            assertFalse(response.getException() instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            blocker.close();
+        }
+    }
+
+    @Test
+    public void testStripesTakeTurnsWhenIdle() throws Exception {
+        StripedTransactionController controller = new StripedTransactionController(
+                (InetSocketAddress) server.getLocalAddress(), new InetSocketAddress(localhost, 0), 4);
+        Set<SinglePortTransactionController> seen = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            seen.add(controller.leastLoaded());
+        }
+        assertEquals(4, seen.size());
+    }
+
+    @Test
+    public void testQueriesSpreadOverStripes() throws Exception {
+        // Nothing answers these
+        DatagramChannel silent = DatagramChannel.open();
+        silent.socket().bind(new InetSocketAddress(localhost, 0));
+        try {
+            StripedTransactionController controller = new StripedTransactionController(
+                    (InetSocketAddress) silent.getLocalAddress(), new InetSocketAddress(localhost, 0), 4);
+            ResponseQueue queue = new ResponseQueue();
+            long endTime = System.currentTimeMillis() + 5000;
+            for (int i = 0; i < 20; i++) {
+                controller.sendQuery(newQuery(42), i, queue, endTime);
+            }
+            assertEquals(20, controller.getInFlightCount());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(5, controller.getStripe(i).getInFlightCount());
+            }
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testSameHeaderIdOnEveryStripe() throws Exception {
+        StripedTransactionController controller = new StripedTransactionController(
+                (InetSocketAddress) server.getLocalAddress(), new InetSocketAddress(localhost, 0), 3);
+        ResponseQueue queue = new ResponseQueue();
+        long endTime = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < 10; i++) {
+            controller.sendQuery(newQuery(42), i, queue, endTime);
+        }
+        Set<Object> ids = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            Response response = queue.getItem();
+            assertFalse("Exception " + response.getException(), response.isException());
+            ids.add(response.getId());
+            // The caller's header ID is put back, whatever went on the wire
+            assertEquals(42, response.getMessage().getHeader().getID());
+        }
+        assertEquals(10, ids.size());
+    }
+}
@@ -0,0 +1,299 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Send queries down a TCPConnectionPool to a server which echoes each query
+ * back as its response. The server can be made to wait for several queries on
+ * a connection, and then answer them in reverse order.
+ */
+public class TCPConnectionPoolTest {
+
+    private ServerSocket server;
+    private InetAddress localhost;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    // The server drops the connection instead of answering this many queries
+    private final AtomicInteger drops = new AtomicInteger();
+    // The server waits for this many queries on a connection before answering
+    private final AtomicInteger batch = new AtomicInteger(1);
+
+    @Before
+    public void setUp() throws Exception {
+        localhost = InetAddress.getByName("127.0.0.1");
+        server = new ServerSocket(0, 50, localhost);
+        Thread acceptor = new Thread("TCPConnectionPoolTest acceptor") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        accepted.incrementAndGet();
+                        Thread echo = new Thread("TCPConnectionPoolTest echo") {
+                            @Override
+                            public void run() {
+                                echo(socket);
+                            }
+                        };
+                        echo.setDaemon(true);
+                        echo.start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void echo(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            List<byte[]> queries = new ArrayList<>();
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                if (drops.getAndDecrement() > 0) {
+                    break;
+                }
+                queries.add(query);
+                if (queries.size() < batch.get()) {
+                    continue;
+                }
+                // Turn the queries in to responses, last one first
+                for (int i = queries.size() - 1; i >= 0; i--) {
+                    byte[] response = queries.get(i);
+                    response[2] |= (byte) 0x80;
+                    out.writeShort(response.length);
+                    out.write(response);
+                }
+                out.flush();
+                queries.clear();
+            }
+        } catch (IOException e) {
+            // closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            closed.incrementAndGet();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        TCPConnection.setIdleTimeout(0);
+    }
+
+    private QueryData newQuery(int headerId, ResponseQueue queue, Object id) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        query.getHeader().setID(headerId);
+        QueryData qData = new QueryData();
+        qData.setTcp(true);
+        qData.setQuery(query);
+        qData.setId(id);
+        qData.setResponseQueue(queue);
+        qData.setEndTime(System.currentTimeMillis() + 5000);
+        return qData;
+    }
+
+    private TCPConnectionPool newPool(int maxUses) {
+        return newPool(4, 64, maxUses);
+    }
+
+    private TCPConnectionPool newPool(int size, int maxInFlight, int maxUses) {
+        return new TCPConnectionPool((InetSocketAddress) server.getLocalSocketAddress(), localhost, size, maxInFlight, maxUses, 60000);
+    }
+
+    private void checkResponse(Response response, int id) {
+        assertFalse("Exception " + response.getException(), response.isException());
+        assertEquals(id, response.getId());
+        assertEquals(id, response.getMessage().getHeader().getID());
+        assertTrue(response.getMessage().getHeader().getFlag(Flags.QR));
+    }
+
+    @Test
+    public void testIdleConnectionReused() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(100);
+        ResponseQueue queue = new ResponseQueue();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+            checkResponse(queue.getItem(), i);
+        }
+        assertEquals(1, accepted.get());
+        assertEquals(1, pool.getConnectionCount());
+    }
+
+    @Test
+    public void testClosedWhenIdle() throws Exception {
+        TCPConnection.setIdleTimeout(0);
+        TCPConnectionPool pool = newPool(100);
+        ResponseQueue queue = new ResponseQueue();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+            checkResponse(queue.getItem(), i);
+            // The connection is closed as soon as the response is back
+            long end = System.currentTimeMillis() + 5000;
+            while (closed.get() <= i && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(i + 1, closed.get());
+        }
+        assertEquals(3, accepted.get());
+    }
+
+    @Test
+    public void testIdleTimeoutExpires() throws Exception {
+        TCPConnection.setIdleTimeout(200);
+        TCPConnectionPool pool = newPool(100);
+        ResponseQueue queue = new ResponseQueue();
+        assertTrue(pool.sendQuery(newQuery(1, queue, 1)));
+        checkResponse(queue.getItem(), 1);
+        Thread.sleep(1000);
+        assertTrue(pool.sendQuery(newQuery(2, queue, 2)));
+        checkResponse(queue.getItem(), 2);
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testRetiredAfterMaxUses() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(2);
+        ResponseQueue queue = new ResponseQueue();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+            checkResponse(queue.getItem(), i);
+        }
+        assertEquals(3, accepted.get());
+    }
+
+    @Test
+    public void testQueriesSentAgainAfterServerCloses() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(100);
+        ResponseQueue queue = new ResponseQueue();
+        assertTrue(pool.sendQuery(newQuery(1, queue, 1)));
+        checkResponse(queue.getItem(), 1);
+        // The server closes the connection rather than answer the next query
+        drops.set(1);
+        assertTrue(pool.sendQuery(newQuery(2, queue, 2)));
+        checkResponse(queue.getItem(), 2);
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testConnectFailsFast() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        TCPConnectionPool pool = new TCPConnectionPool(new InetSocketAddress(localhost, port), localhost, 4, 64, 100, 60000);
+        ResponseQueue queue = new ResponseQueue();
+        long start = System.currentTimeMillis();
+        assertTrue(pool.sendQuery(newQuery(1, queue, 1)));
+        Response response = queue.getItem();
+        assertTrue(response.isException());
+        assertTrue("Got " + response.getException(), response.getException() instanceof IOException);
+        assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+
+    @Test
+    public void testResponsesMatchedOutOfOrder() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(1, 8, 100);
+        ResponseQueue queue = new ResponseQueue();
+        batch.set(4);
+        for (int i = 10; i < 14; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+        }
+        // The server answers the last query first
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            Response response = queue.getItem();
+            if (i == 0) {
+                assertEquals(13, response.getId());
+            }
+            checkResponse(response, (Integer) response.getId());
+            ids.add((Integer) response.getId());
+        }
+        assertEquals(4, ids.size());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testInFlightCapped() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(1, 2, 100);
+        ResponseQueue queue = new ResponseQueue();
+        // The server never has enough queries to answer
+        batch.set(3);
+        assertTrue(pool.sendQuery(newQuery(1, queue, 1)));
+        assertTrue(pool.sendQuery(newQuery(2, queue, 2)));
+        assertFalse(pool.sendQuery(newQuery(3, queue, 3)));
+        assertEquals(1, pool.getConnectionCount());
+    }
+
+    @Test
+    public void testSpreadOverConnections() throws Exception {
+        TCPConnection.setIdleTimeout(5000);
+        TCPConnectionPool pool = newPool(3, 8, 100);
+        ResponseQueue queue = new ResponseQueue();
+        // Each connection must have two queries in flight to be answered
+        batch.set(2);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 6; i++) {
+            Response response = queue.getItem();
+            checkResponse(response, (Integer) response.getId());
+            ids.add((Integer) response.getId());
+        }
+        assertEquals(6, ids.size());
+        assertEquals(3, accepted.get());
+        assertEquals(3, pool.getConnectionCount());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Test the TCP length prefix framing, in both directions.
+ */
+public class TCPConnectionTest {
+
+    private static void putFrame(ByteBuffer buf, byte[] data) {
+        buf.putShort((short) data.length);
+        buf.put(data);
+    }
+
+    @Test
+    public void testSplitsPipelinedFrames() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        putFrame(buf, new byte[]{1, 2, 3});
+        putFrame(buf, new byte[]{4});
+        putFrame(buf, new byte[0]);
+        // Half of the next one
+        buf.putShort((short) 4);
+        buf.put((byte) 5);
+        buf.flip();
+
+        assertArrayEquals(new byte[]{1, 2, 3}, TCPConnection.nextFrame(buf));
+        assertArrayEquals(new byte[]{4}, TCPConnection.nextFrame(buf));
+        assertArrayEquals(new byte[0], TCPConnection.nextFrame(buf));
+        assertNull(TCPConnection.nextFrame(buf));
+
+        // The partial frame is moved to the front, ready for the rest
+        buf = TCPConnection.compact(buf);
+        assertEquals(3, buf.position());
+        buf.put(new byte[]{6, 7, 8});
+        buf.flip();
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, TCPConnection.nextFrame(buf));
+        assertNull(TCPConnection.nextFrame(buf));
+    }
+
+    @Test
+    public void testPartialLength() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.put((byte) 0);
+        buf.flip();
+        assertNull(TCPConnection.nextFrame(buf));
+        buf = TCPConnection.compact(buf);
+        assertEquals(1, buf.position());
+    }
+
+    @Test
+    public void testGrowsForLargeFrame() {
+        ByteBuffer buf = BufferPool.acquire(BufferPool.MIN_SIZE);
+        byte[] data = new byte[5000];
+        data[4999] = 9;
+        buf.putShort((short) data.length);
+        buf.put(data, 0, buf.remaining());
+        buf.flip();
+        assertNull(TCPConnection.nextFrame(buf));
+
+        ByteBuffer bigger = TCPConnection.compact(buf);
+        assertTrue(bigger.capacity() >= data.length + 2);
+        assertEquals(BufferPool.MIN_SIZE, bigger.position());
+        bigger.put(data, BufferPool.MIN_SIZE - 2, data.length - (BufferPool.MIN_SIZE - 2));
+        bigger.flip();
+        assertArrayEquals(data, TCPConnection.nextFrame(bigger));
+
+        // Small enough frames are compacted in place
+        ByteBuffer small = ByteBuffer.allocate(16);
+        small.flip();
+        assertSame(small, TCPConnection.compact(small));
+    }
+
+    @Test
+    public void testFramesForGatheringWrite() {
+        List<byte[]> queue = new LinkedList<>();
+        queue.add(new byte[]{1, 2, 3});
+        queue.add(new byte[]{4});
+        queue.add(new byte[]{5, 6});
+        // Only room for the lengths of two messages
+        ByteBuffer lengths = ByteBuffer.allocate(4);
+        ByteBuffer[] srcs = TCPConnection.frames(queue, lengths);
+        assertEquals(4, srcs.length);
+        assertEquals(1, queue.size());
+
+        // Read them back as if they had gone down the wire
+        ByteBuffer wire = ByteBuffer.allocate(64);
+        for (ByteBuffer src : srcs) {
+            wire.put(src.duplicate());
+        }
+        wire.flip();
+        assertArrayEquals(new byte[]{1, 2, 3}, TCPConnection.nextFrame(wire));
+        assertArrayEquals(new byte[]{4}, TCPConnection.nextFrame(wire));
+        assertNull(TCPConnection.nextFrame(wire));
+    }
+
+    @Test
+    public void testRemainderOfShortWrite() {
+        List<byte[]> queue = new LinkedList<>();
+        queue.add(new byte[]{1, 2, 3});
+        queue.add(new byte[]{4});
+        ByteBuffer[] srcs = TCPConnection.frames(queue, ByteBuffer.allocate(8));
+        // Pretend the first three bytes went out
+        srcs[0].position(srcs[0].limit());
+        srcs[1].position(1);
+        ByteBuffer rest = TCPConnection.remainder(srcs);
+        assertEquals(5, rest.remaining());
+        assertEquals(2, rest.get());
+        assertEquals(3, rest.get());
+        assertEquals(1, rest.getShort());
+        assertEquals(4, rest.get());
+
+        for (ByteBuffer src : srcs) {
+            src.position(src.limit());
+        }
+        assertNull(TCPConnection.remainder(srcs));
+    }
+}
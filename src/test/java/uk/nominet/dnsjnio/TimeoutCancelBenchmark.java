@@ -0,0 +1,64 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+/**
+ * Measures what answering a single port query costs the Timer, as the number
+ * of queries in flight grows. Each "response" cancels one outstanding timeout
+ * and a new query takes its place, so the number in flight stays constant.
+ * This is not run as part of the unit tests - run main() by hand.
+ */
+public class TimeoutCancelBenchmark {
+
+    final static int RESPONSES = 1000000;
+    final static int[] IN_FLIGHT = {100, 1000, 10000, 100000};
+
+    private static final TimerListener LISTENER = new TimerListener() {
+        @Override
+        public void timedOut(QueryData qData) {
+        }
+    };
+
+    public static void main(String[] args) {
+        // Warm up
+        run(1000);
+        run(100000);
+        System.out.println("in flight\tns/response");
+        for (int inFlight : IN_FLIGHT) {
+            System.out.println(inFlight + "\t\t" + run(inFlight));
+        }
+        Timer.reset();
+    }
+
+    private static long run(int inFlight) {
+        Timer.reset();
+        // Far enough away that nothing fires during the run
+        long deadline = System.currentTimeMillis() + 3600000;
+        QueryData[] queries = new QueryData[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            queries[i] = new QueryData();
+            Timer.addTimeout(deadline, LISTENER, queries[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RESPONSES; i++) {
+            QueryData qData = queries[i % inFlight];
+            Timer.cancelTimeout(LISTENER, qData);
+            Timer.addTimeout(deadline, LISTENER, qData);
+        }
+        return (System.nanoTime() - start) / RESPONSES;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.Header;
+
+/**
+ * Stress the Timer with a mass timeout, as would happen if an upstream server
+ * went away.
+ */
+public class TimerTest {
+
+    final static int NUM_TIMEOUTS = 50000;
+
+    @Before
+    public void setUp() {
+        Timer.reset();
+        Timer.setUseEventLoop(false);
+    }
+
+    @After
+    public void tearDown() {
+        Timer.reset();
+    }
+
+    @Test
+    public void testSlowCallbacksDoNotBlockAddTimeout() throws Exception {
+        final CountDownLatch firstFired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch allFired = new CountDownLatch(NUM_TIMEOUTS);
+        long deadline = System.currentTimeMillis() + 200;
+        for (int i = 0; i < NUM_TIMEOUTS; i++) {
+            Timer.addTimeout(deadline, new TimerListener() {
+                @Override
+                public void timedOut(QueryData qData) {
+                    firstFired.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    allFired.countDown();
+                }
+            });
+        }
+        assertTrue("Timeouts did not fire", firstFired.await(10, TimeUnit.SECONDS));
+        // A callback is now stuck - make sure the Timer is still usable
+        TimerListener other = new TimerListener() {
+            @Override
+            public void timedOut(QueryData qData) {
+            }
+        };
+        long later = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < 1000; i++) {
+            Timer.addTimeout(later, other);
+            Timer.cancelTimeout(other);
+            QueryData qData = new QueryData();
+            Timer.addTimeout(later, other, qData);
+            Timer.cancelTimeout(other, qData);
+        }
+        release.countDown();
+        assertTrue("Only " + (NUM_TIMEOUTS - allFired.getCount()) + " timeouts fired",
+                allFired.await(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTransactionTimeoutsFireOnEventLoop() throws Exception {
+        final CountDownLatch allFired = new CountDownLatch(NUM_TIMEOUTS);
+        final AtomicInteger wrongThread = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + 200;
+        for (int i = 0; i < NUM_TIMEOUTS; i++) {
+            Timer.addTimeout(deadline, new TestTransaction() {
+                @Override
+                public void timedOut(QueryData qData) {
+                    if (!getEventLoop().inEventLoop()) {
+                        wrongThread.incrementAndGet();
+                    }
+                    allFired.countDown();
+                }
+            });
+        }
+        assertTrue("Only " + (NUM_TIMEOUTS - allFired.getCount()) + " timeouts fired",
+                allFired.await(60, TimeUnit.SECONDS));
+        assertEquals(0, wrongThread.get());
+    }
+
+    private static class TestTransaction extends AbstractTransaction {
+
+        @Override
+        protected boolean disconnect(QueryData qData) {
+            return false;
+        }
+
+        @Override
+        protected void returnException(Exception e, QueryData qData) {
+        }
+
+        @Override
+        public void readyToSend(Connection connection) {
+        }
+
+        @Override
+        public void dataAvailable(byte[] data, Header header, Connection connection) {
+        }
+    }
+}
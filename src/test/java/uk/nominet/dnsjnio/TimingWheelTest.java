@@ -0,0 +1,96 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final TimerListener LISTENER = new TimerListener() {
+        @Override
+        public void timedOut(QueryData qData) {
+        }
+    };
+
+    @Test
+    public void testExpiresOnlyDueTimeouts() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        long now = System.currentTimeMillis();
+        TimingWheel.Timeout soon = wheel.schedule(now + 20, LISTENER, null);
+        TimingWheel.Timeout later = wheel.schedule(now + 500, LISTENER, null);
+        assertEquals(2, wheel.size());
+
+        List<TimingWheel.Timeout> expired = wheel.expire(now + 40);
+        assertEquals(1, expired.size());
+        assertSame(soon, expired.get(0));
+        assertEquals(1, wheel.size());
+
+        // Several revolutions of the wheel later
+        expired = wheel.expire(now + 520);
+        assertEquals(1, expired.size());
+        assertSame(later, expired.get(0));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel wheel = new TimingWheel(1, 64);
+        long now = System.currentTimeMillis();
+        TimingWheel.Timeout first = wheel.schedule(now + 5, LISTENER, null);
+        TimingWheel.Timeout second = wheel.schedule(now + 5, LISTENER, null);
+        assertTrue(first.cancel());
+        assertFalse(first.cancel());
+        List<TimingWheel.Timeout> expired = wheel.expire(now + 10);
+        assertEquals(1, expired.size());
+        assertSame(second, expired.get(0));
+        assertFalse(second.cancel());
+    }
+
+    @Test
+    public void testPastDeadlineFiresOnNextTick() {
+        TimingWheel wheel = new TimingWheel(5, 16);
+        long now = System.currentTimeMillis();
+        wheel.expire(now + 100);
+        wheel.schedule(now, LISTENER, null);
+        assertEquals(1, wheel.expire(now + 110).size());
+    }
+
+    @Test
+    public void testNextExpiryTime() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiryTime());
+        long now = System.currentTimeMillis();
+        wheel.schedule(now + 500, LISTENER, null);
+        TimingWheel.Timeout soon = wheel.schedule(now + 100, LISTENER, null);
+        long next = wheel.nextExpiryTime();
+        assertTrue(next >= now + 100 && next < now + 110);
+
+        // Not a tick earlier than it need be once the first has gone
+        wheel.expire(next);
+        next = wheel.nextExpiryTime();
+        assertTrue(next >= now + 500 && next < now + 510);
+        assertFalse(soon.cancel());
+
+        wheel.expire(next);
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiryTime());
+    }
+}
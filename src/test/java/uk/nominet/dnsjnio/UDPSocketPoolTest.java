@@ -0,0 +1,139 @@
+/*
+Copyright 2007 Nominet UK
+Copyright 2016 Blue Lotus Software, LLC.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Send queries down a UDPSocketPool to a server which echoes each query back
+ * as its response.
+ */
+public class UDPSocketPoolTest {
+
+    private DatagramChannel server;
+    private Thread echo;
+    private InetAddress localhost;
+
+    @Before
+    public void setUp() throws Exception {
+        localhost = InetAddress.getByName("127.0.0.1");
+        server = DatagramChannel.open();
+        server.socket().bind(new InetSocketAddress(localhost, 0));
+        echo = new Thread("UDPSocketPoolTest echo") {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocate(512);
+                try {
+                    while (true) {
+                        buf.clear();
+                        SocketAddress from = server.receive(buf);
+                        buf.flip();
+                        // Turn the query in to a response
+                        buf.put(2, (byte) (buf.get(2) | 0x80));
+                        server.send(buf, from);
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private QueryData newQuery(int headerId, ResponseQueue queue, Object id) throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("example.net."), Type.A, DClass.IN));
+        query.getHeader().setID(headerId);
+        QueryData qData = new QueryData();
+        qData.setQuery(query);
+        qData.setId(id);
+        qData.setResponseQueue(queue);
+        qData.setEndTime(System.currentTimeMillis() + 5000);
+        return qData;
+    }
+
+    @Test
+    public void testSocketsReusedThenRetired() throws Exception {
+        UDPSocketPool pool = new UDPSocketPool((InetSocketAddress) server.getLocalAddress(), localhost, 2, 3, 60000);
+        ResponseQueue queue = new ResponseQueue();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(pool.sendQuery(newQuery(i, queue, i)));
+            Response response = queue.getItem();
+            assertFalse("Exception " + response.getException(), response.isException());
+            assertEquals(i, response.getId());
+            assertEquals(i, response.getMessage().getHeader().getID());
+            assertTrue(response.getMessage().getHeader().getFlag(Flags.QR));
+        }
+        // Three queries each, so the first two sockets have been retired
+        assertEquals(1, pool.getSocketCount());
+    }
+
+    @Test
+    public void testHeaderIdsUniquePerSocket() throws Exception {
+        // Nothing answers these
+        DatagramChannel silent = DatagramChannel.open();
+        silent.socket().bind(new InetSocketAddress(localhost, 0));
+        try {
+            UDPSocketPool pool = new UDPSocketPool((InetSocketAddress) silent.getLocalAddress(), localhost, 2, 100, 60000);
+            ResponseQueue queue = new ResponseQueue();
+            assertTrue(pool.sendQuery(newQuery(42, queue, 1)));
+            assertTrue(pool.sendQuery(newQuery(42, queue, 2)));
+            assertEquals(2, pool.getSocketCount());
+            // Both sockets already have ID 42 in flight
+            assertFalse(pool.sendQuery(newQuery(42, queue, 3)));
+            assertTrue(pool.sendQuery(newQuery(43, queue, 4)));
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testRetiredByAgeWithoutTraffic() throws Exception {
+        UDPSocketPool pool = new UDPSocketPool((InetSocketAddress) server.getLocalAddress(), localhost, 2, 100, 200);
+        ResponseQueue queue = new ResponseQueue();
+        assertTrue(pool.sendQuery(newQuery(1, queue, 1)));
+        assertFalse(queue.getItem().isException());
+        assertEquals(1, pool.getSocketCount());
+        // No more queries - the timer retires the socket
+        long end = System.currentTimeMillis() + 5000;
+        while (pool.getSocketCount() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getSocketCount());
+    }
+}